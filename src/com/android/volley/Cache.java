@@ -16,6 +16,9 @@
 
 package com.android.volley;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
@@ -39,7 +42,8 @@ public interface Cache {
 
     /**
      * Performs any potentially long-running actions needed to initialize the cache;
-     * will be called from a worker thread.
+     * will be called from a worker thread. No lookups are made until this returns, so a cache
+     * that can answer them while it is still loading should load in the background.
      */
     public void initialize();
 
@@ -61,13 +65,32 @@ public interface Cache {
      */
     public void clear();
 
+    /**
+     * Supplies the data of an entry as a stream, so that it needn't be held in memory whole.
+     * Only entries returned by a {@link StreamingCache} have one.
+     */
+    public interface DataSource {
+        /**
+         * Opens a new stream over the data. The caller must close it.
+         */
+        public InputStream open() throws IOException;
+
+        /**
+         * Returns the length of the data in bytes.
+         */
+        public long length();
+    }
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
     public static class Entry {
-        /** The data returned from cache. */
+        /** The data returned from cache, or null if it is only available from {@link #source}. */
         public byte[] data;
 
+        /** Source of the data when {@link #data} is null. */
+        public DataSource source;
+
         /** ETag for cache coherency. */
         public String etag;
 
@@ -92,6 +115,16 @@ public interface Cache {
         public boolean refreshNeeded() {
             return this.softTtl < System.currentTimeMillis();
         }
+
+        /** Returns the length of the data in bytes. */
+        public long getDataLength() {
+            return data != null ? data.length : source.length();
+        }
+
+        /** Opens a new stream over the data, wherever it is held. The caller must close it. */
+        public InputStream openData() throws IOException {
+            return data != null ? new ByteArrayInputStream(data) : source.open();
+        }
     }
 
 }
@@ -19,6 +19,8 @@ package com.android.volley;
 import android.os.Process;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /**
  * Provides a thread for performing cache triage on a queue of requests.
@@ -44,9 +46,21 @@ public class CacheDispatcher extends Thread {
     /** For posting responses. */
     private final ResponseDelivery mDelivery;
 
+    /** Released once the cache has been initialized, or null if not shared. */
+    private final CountDownLatch mCacheInitialized;
+
+    /** Whether this dispatcher initializes the cache, rather than wait for another one to. */
+    private final boolean mInitializesCache;
+
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
+    /** Whether to wait for room when forwarding to a full network queue. */
+    private boolean mWaitForNetworkQueue = true;
+
+    /** Runs parsing and delivery of cache hits, or null to run them on this thread. */
+    private Executor mParseExecutor;
+
     /**
      * Creates a new cache triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -59,10 +73,26 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request> cacheQueue, BlockingQueue<Request> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, null, true);
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread that is one of several sharing a cache.
+     *
+     * @param cacheInitialized Released once the cache has been initialized
+     * @param initializesCache Whether this dispatcher initializes the cache; if not, it waits
+     *        for <code>cacheInitialized</code> before triaging
+     */
+    CacheDispatcher(
+            BlockingQueue<Request> cacheQueue, BlockingQueue<Request> networkQueue,
+            Cache cache, ResponseDelivery delivery, CountDownLatch cacheInitialized,
+            boolean initializesCache) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mCacheInitialized = cacheInitialized;
+        mInitializesCache = initializesCache;
     }
 
     /**
@@ -74,84 +104,204 @@ public class CacheDispatcher extends Thread {
         interrupt();
     }
 
+    /**
+     * Makes this dispatcher reject requests rather than wait when the network queue is full,
+     * for use where waiting would tie up a shared thread.
+     */
+    void setWaitForNetworkQueue(boolean waitForNetworkQueue) {
+        mWaitForNetworkQueue = waitForNetworkQueue;
+    }
+
+    /**
+     * Hands parsing and posting of cache hits to the given executor, so that this thread can
+     * go on to read the next entry while that CPU work is done. Responses for requests with
+     * the same cache key may then be delivered out of order.
+     *
+     * @param parseExecutor Executor to parse on, or null to parse on this thread
+     */
+    void setParseExecutor(Executor parseExecutor) {
+        mParseExecutor = parseExecutor;
+    }
+
     @Override
     public void run() {
         if (VolleyLog.sDebug) VolleyLog.v("start new dispatcher");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        // Make a blocking call to initialize the cache, or wait for the dispatcher that does.
+        if (!awaitCache()) {
+            return;
+        }
 
         while (true) {
             try {
                 // Get a request from the cache triage queue, blocking until
                 // at least one is available.
-                final Request request = mCacheQueue.take();
-                request.addMarker("cache-queue-take");
-
-                // If the request has been canceled, don't bother dispatching it.
-                if (request.isCanceled()) {
-                    request.finish("cache-discard-canceled");
-                    continue;
+                Request request = mCacheQueue.take();
+                processRequest(request);
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    return;
                 }
+                continue;
+            }
+        }
+    }
 
-                // Attempt to retrieve this item from cache.
-                Cache.Entry entry = mCache.get(request.getCacheKey());
-                if (entry == null) {
-                    request.addMarker("cache-miss");
-                    // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
-                    continue;
+    /**
+     * Initializes the cache, or waits for it to be initialized by another dispatcher.
+     *
+     * @return false if this dispatcher was told to quit while waiting
+     */
+    private boolean awaitCache() {
+        if (mInitializesCache) {
+            try {
+                mCache.initialize();
+            } finally {
+                if (mCacheInitialized != null) {
+                    mCacheInitialized.countDown();
                 }
-
-                // If it is completely expired, just send it to the network.
-                if (entry.isExpired()) {
-                    request.addMarker("cache-hit-expired");
-                    request.setCacheEntry(entry);
-                    mNetworkQueue.put(request);
-                    continue;
+            }
+            return true;
+        }
+        while (true) {
+            try {
+                mCacheInitialized.await();
+                return true;
+            } catch (InterruptedException e) {
+                if (mQuit) {
+                    return false;
                 }
+            }
+        }
+    }
+
+    /**
+     * Triages a single request taken off the cache queue: delivers it from cache, or forwards
+     * it to the network queue on a miss or when the entry needs refreshing.
+     */
+    void processRequest(final Request request) throws InterruptedException {
+        request.addMarker("cache-queue-take");
+        request.markDispatched();
+
+        // If the request has been canceled, don't bother dispatching it.
+        if (request.isCanceled()) {
+            request.finish("cache-discard-canceled");
+            return;
+        }
 
-                // We have a cache hit; parse its data for delivery back to the request.
-                request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
-                request.addMarker("cache-hit-parsed");
-
-                if (!entry.refreshNeeded()) {
-                    // Completely unexpired cache hit. Just deliver the response.
-                    mDelivery.postResponse(request, response);
-                } else {
-                    // Soft-expired cache hit. We can deliver the cached response,
-                    // but we need to also send the request to the network for
-                    // refreshing.
-                    request.addMarker("cache-hit-refresh-needed");
-                    request.setCacheEntry(entry);
-
-                    // Mark the response as intermediate.
-                    response.intermediate = true;
-
-                    // Post the intermediate response back to the user and have
-                    // the delivery then forward the request along to the network.
-                    mDelivery.postResponse(request, response, new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mNetworkQueue.put(request);
-                            } catch (InterruptedException e) {
-                                // Not much we can do about this.
-                            }
-                        }
-                    });
+        // If the request ran out of time while queued, fail it without touching the disk.
+        if (request.isPastDeadline()) {
+            request.addMarker("cache-discard-deadline");
+            mDelivery.postError(request, new TimeoutError("Deadline passed while queued"));
+            return;
+        }
+
+        // Use the entry handed over by an identical request that just finished, if there is
+        // one; otherwise attempt to retrieve this item from cache.
+        // Requests that parse from a stream don't need the data read into memory.
+        boolean streaming = request.acceptsStreamingResponse();
+        Cache.Entry entry = request.takePrimedCacheEntry();
+        if (entry != null && (entry.data != null || streaming)) {
+            request.addMarker("cache-handed-off");
+        } else if (streaming && mCache instanceof StreamingCache) {
+            entry = ((StreamingCache) mCache).getStreaming(request.getCacheKey());
+        } else {
+            entry = mCache.get(request.getCacheKey());
+        }
+        if (entry == null) {
+            request.addMarker("cache-miss");
+            // Cache miss; send off to the network dispatcher.
+            forwardToNetwork(request);
+            return;
+        }
+
+        // If it is completely expired, just send it to the network.
+        if (entry.isExpired()) {
+            request.addMarker("cache-hit-expired");
+            request.setCacheEntry(entry);
+            forwardToNetwork(request);
+            return;
+        }
+
+        // We have a cache hit; parse its data for delivery back to the request, on the parse
+        // pool if there is one.
+        request.addMarker("cache-hit");
+        request.recordResolvedCacheEntry(entry);
+        final Cache.Entry hit = entry;
+        Executor parseExecutor = mParseExecutor;
+        if (parseExecutor != null) {
+            parseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    parseAndDeliver(request, hit);
                 }
+            });
+        } else {
+            parseAndDeliver(request, hit);
+        }
+    }
 
-            } catch (InterruptedException e) {
-                // We may have been interrupted because it was time to quit.
-                if (mQuit) {
-                    return;
+    /**
+     * Parses a cache hit and posts it back, forwarding the request to the network afterwards
+     * if the entry needs refreshing.
+     */
+    private void parseAndDeliver(final Request request, Cache.Entry entry) {
+        Response<?> response;
+        try {
+            response = request.parseNetworkResponse(NetworkResponse.fromCacheEntry(entry));
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            mDelivery.postError(request, new VolleyError(e));
+            return;
+        }
+        request.addMarker("cache-hit-parsed");
+
+        if (!entry.refreshNeeded()) {
+            // Completely unexpired cache hit. Just deliver the response.
+            mDelivery.postResponse(request, response);
+        } else {
+            // Soft-expired cache hit. We can deliver the cached response,
+            // but we need to also send the request to the network for
+            // refreshing.
+            request.addMarker("cache-hit-refresh-needed");
+            request.setCacheEntry(entry);
+
+            // Mark the response as intermediate.
+            response.intermediate = true;
+
+            // Post the intermediate response back to the user and have
+            // the delivery then forward the request along to the network.
+            // Never wait for room on the delivery thread; if the network
+            // queue is full, the refresh is dropped.
+            mDelivery.postResponse(request, response, new Runnable() {
+                @Override
+                public void run() {
+                    mNetworkQueue.offer(request);
                 }
-                continue;
-            }
+            });
+        }
+    }
+
+    /**
+     * Sends a request on to the network queue, waiting for room if the queue is bounded and
+     * blocks when full, unless told otherwise. If interrupted while waiting, the request is
+     * rejected, so that it finishes and releases the requests staged behind it, before the
+     * interrupt is passed on.
+     */
+    private void forwardToNetwork(Request request) throws InterruptedException {
+        if (!mWaitForNetworkQueue) {
+            mNetworkQueue.offer(request);
+            return;
+        }
+        try {
+            mNetworkQueue.put(request);
+        } catch (InterruptedException e) {
+            request.addMarker("cache-forward-interrupted");
+            mDelivery.postError(request,
+                    new RequestRejectedError("Interrupted while waiting for the network queue"));
+            throw e;
         }
     }
 }
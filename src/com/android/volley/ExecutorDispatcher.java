@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Dispatches requests as tasks on an {@link Executor} instead of on dedicated dispatcher
+ * threads.
+ *
+ * <p>Every time a request is queued, one task is submitted that takes the highest priority
+ * request currently queued and processes it with the same logic as {@link CacheDispatcher} or
+ * {@link NetworkDispatcher}, so ordering and per-host limits still apply. Concurrency is
+ * whatever the executor allows; with a thread-per-task executor every queued network request
+ * runs at once.</p>
+ */
+@SuppressWarnings("rawtypes")
+class ExecutorDispatcher {
+
+    /** Runs the dispatch tasks. */
+    private final Executor mExecutor;
+
+    /** The cache triage queues. */
+    private final BlockingQueue<Request>[] mCacheQueues;
+
+    /** The queue of requests going out to the network. */
+    private final BlockingQueue<Request> mNetworkQueue;
+
+    /** The cache to initialize before triage starts. */
+    private final Cache mCache;
+
+    /** Cache triage logic; never started as a thread. */
+    private final CacheDispatcher mCacheDispatcher;
+
+    /** Network dispatch logic; never started as a thread. */
+    private final NetworkDispatcher mNetworkDispatcher;
+
+    /** Released once the cache has been initialized. */
+    private final CountDownLatch mCacheInitialized = new CountDownLatch(1);
+
+    /** Used for telling us to stop submitting and running tasks. */
+    private volatile boolean mQuit = false;
+
+    /** For each cache queue, the task that triages one request from it. */
+    private final Runnable[] mCacheTasks;
+
+    private final Runnable mNetworkTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mQuit) {
+                return;
+            }
+            Request request = mNetworkQueue.poll();
+            if (request != null) {
+                mNetworkDispatcher.processRequest(request);
+            }
+        }
+    };
+
+    /**
+     * @param executor Executor to run dispatch tasks on
+     * @param cacheQueues Queues of incoming requests for triage
+     * @param networkQueue Queue of requests going out to the network
+     * @param cache Cache interface to use for resolution and for writing responses
+     * @param network Network interface to use for performing requests
+     * @param delivery Delivery interface to use for posting responses
+     */
+    ExecutorDispatcher(Executor executor, BlockingQueue<Request>[] cacheQueues,
+            BlockingQueue<Request> networkQueue, Cache cache, Network network,
+            ResponseDelivery delivery) {
+        mExecutor = executor;
+        mCacheQueues = cacheQueues;
+        mNetworkQueue = networkQueue;
+        mCache = cache;
+        mCacheTasks = new Runnable[cacheQueues.length];
+        for (int i = 0; i < cacheQueues.length; i++) {
+            mCacheTasks[i] = newCacheTask(cacheQueues[i]);
+        }
+        mCacheDispatcher = new CacheDispatcher(cacheQueues[0], networkQueue, cache, delivery);
+        // A task waiting for room in the network queue could hold the thread the network
+        // tasks need to drain it.
+        mCacheDispatcher.setWaitForNetworkQueue(false);
+        mNetworkDispatcher = new NetworkDispatcher(networkQueue, network, cache, delivery);
+    }
+
+    /**
+     * Initializes the cache on the executor, and submits tasks for any requests queued before
+     * this dispatcher started.
+     */
+    void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.initialize();
+                mCacheInitialized.countDown();
+            }
+        });
+        for (BlockingQueue<Request> cacheQueue : mCacheQueues) {
+            for (int i = cacheQueue.size(); i > 0; i--) {
+                onCacheRequestQueued(cacheQueue);
+            }
+        }
+        for (int i = mNetworkQueue.size(); i > 0; i--) {
+            onNetworkRequestQueued();
+        }
+    }
+
+    private Runnable newCacheTask(final BlockingQueue<Request> cacheQueue) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (mQuit) {
+                    return;
+                }
+                try {
+                    mCacheInitialized.await();
+                    Request request = cacheQueue.poll();
+                    if (request != null) {
+                        mCacheDispatcher.processRequest(request);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * Stops running tasks. Tasks already running finish their current request; the executor
+     * itself is left alone.
+     */
+    void quit() {
+        mQuit = true;
+        mCacheInitialized.countDown();
+    }
+
+    /** Called whenever a request is added to one of the cache queues. */
+    void onCacheRequestQueued(BlockingQueue<Request> cacheQueue) {
+        if (mQuit) {
+            return;
+        }
+        for (int i = 0; i < mCacheQueues.length; i++) {
+            if (mCacheQueues[i] == cacheQueue) {
+                mExecutor.execute(mCacheTasks[i]);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called whenever a request is added to the network queue, or may have become available to
+     * take because a per-host slot was released.
+     */
+    void onNetworkRequestQueued() {
+        if (!mQuit) {
+            mExecutor.execute(mNetworkTask);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Registry of requests in flight, keyed by cache key, along with the duplicate requests
+ * staged behind them.
+ *
+ * <p>Keys are spread over a fixed number of independently locked stripes, so adding and
+ * releasing requests for different keys does not contend on a single monitor.</p>
+ */
+@SuppressWarnings("rawtypes")
+class InFlightRequests {
+
+    /** Default number of stripes; must be a power of two. */
+    private static final int DEFAULT_STRIPE_COUNT = 16;
+
+    /**
+     * The stripes. For each stripe:
+     *
+     * <ul>
+     *     <li>containsKey(key) indicates that there is a request in flight for the given
+     *          key.</li>
+     *     <li>get(key) returns waiting requests for the given key. The in flight request
+     *          is <em>not</em> contained in that list. Is null if no requests are staged.</li>
+     * </ul>
+     */
+    private final Map<String, Queue<Request>>[] mStripes;
+
+    /** Mask used to map a spread hash onto a stripe index. */
+    private final int mMask;
+
+    InFlightRequests() {
+        this(DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * @param stripeCount Number of stripes to use; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    InFlightRequests(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        mStripes = new Map[size];
+        for (int i = 0; i < size; i++) {
+            mStripes[i] = new HashMap<String, Queue<Request>>();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Marks the given request as in flight for key, unless another request already is,
+     * in which case the request is staged behind it.
+     *
+     * @return true if the request was staged behind a duplicate, false if it is now the
+     *         in flight request for key and should be dispatched
+     */
+    boolean stageIfInFlight(String key, Request request) {
+        Map<String, Queue<Request>> stripe = stripeFor(key);
+        synchronized (stripe) {
+            if (!stripe.containsKey(key)) {
+                // Insert 'null' queue for this key, indicating there is now a request in flight.
+                stripe.put(key, null);
+                return false;
+            }
+            Queue<Request> stagedRequests = stripe.get(key);
+            if (stagedRequests == null) {
+                stagedRequests = new LinkedList<Request>();
+                stripe.put(key, stagedRequests);
+            }
+            stagedRequests.add(request);
+            return true;
+        }
+    }
+
+    /**
+     * Clears the in flight marker for key.
+     *
+     * @return The requests that were staged behind the in flight request, or null if none
+     */
+    Queue<Request> release(String key) {
+        Map<String, Queue<Request>> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.remove(key);
+        }
+    }
+
+    private Map<String, Queue<Request>> stripeFor(String key) {
+        int h = key.hashCode();
+        // Spread the high bits downwards so that they take part in choosing the stripe.
+        h ^= (h >>> 16);
+        return mStripes[h & mMask];
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking priority queue, like {@link java.util.concurrent.PriorityBlockingQueue}, backed by
+ * an {@link IndexedPriorityQueue} so that the ordering key of a queued element can be changed
+ * in place with {@link #changeKeyOrSet(Object, Runnable)}.
+ *
+ * <p>Unbounded by default. Once a capacity is set, elements offered to a full queue are handled
+ * according to a {@link OverflowPolicy}; elements that are shed as a result are
+ * passed to {@link #onRejected(Object)}.</p>
+ *
+ * @param <E> The type of elements held
+ */
+class IndexedPriorityBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /** Guards all state below. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signaled when the queue becomes non-empty. */
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /** Signaled when an element is removed. */
+    private final Condition mNotFull = mLock.newCondition();
+
+    /** The elements. */
+    private final IndexedPriorityQueue<E> mHeap = new IndexedPriorityQueue<E>();
+
+    /** Maximum number of elements. */
+    private int mCapacity = Integer.MAX_VALUE;
+
+    /** What to do when an element is offered while the queue is full. */
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * Bounds this queue.
+     *
+     * @param capacity Maximum number of elements
+     * @param overflowPolicy What to do when an element is offered while the queue is full
+     */
+    void setCapacity(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mLock.lock();
+        try {
+            mCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Called, without the queue lock held, after an element has been queued.
+     */
+    void onQueued(E e) {
+    }
+
+    /**
+     * Called, without the queue lock held, for each element shed because the queue was full:
+     * either the element being offered or, with
+     * {@link OverflowPolicy#DROP_LOWEST_PRIORITY}, a queued element it displaced.
+     */
+    void onRejected(E e) {
+    }
+
+    /**
+     * Runs keyChange while holding the queue lock, so that e can't be added or moved while its
+     * key changes, and then, if e is queued, moves it to its new position in O(log n).
+     *
+     * @param e The element whose ordering key changes
+     * @param keyChange Changes the ordering key of e
+     * @return true if e was queued
+     */
+    boolean changeKeyOrSet(E e, Runnable keyChange) {
+        mLock.lock();
+        try {
+            keyChange.run();
+            if (!mHeap.contains(e)) {
+                return false;
+            }
+            mHeap.update(e);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds e if there is room. If the queue is full, e or the lowest ranked queued element is
+     * shed according to the overflow policy; {@link OverflowPolicy#BLOCK} sheds e
+     * rather than wait.
+     *
+     * @return true if e was queued
+     */
+    @Override
+    public boolean offer(E e) {
+        try {
+            return enqueue(e, 0);
+        } catch (InterruptedException ie) {
+            // Can't happen; we never wait.
+            throw new IllegalStateException(ie);
+        }
+    }
+
+    /**
+     * Adds e, waiting for room if the queue is full and the overflow policy is
+     * {@link OverflowPolicy#BLOCK}.
+     */
+    @Override
+    public void put(E e) throws InterruptedException {
+        enqueue(e, -1);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return enqueue(e, Math.max(1, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Adds e, applying the overflow policy if the queue is full.
+     *
+     * @param waitNanos How long to wait for room under the blocking policy: negative to wait
+     *        as long as it takes, 0 not to wait
+     * @return true if e was queued
+     */
+    private boolean enqueue(E e, long waitNanos) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        boolean added;
+        E rejected = null;
+        mLock.lockInterruptibly();
+        try {
+            if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+                while (mHeap.size() >= mCapacity && waitNanos != 0) {
+                    if (waitNanos < 0) {
+                        mNotFull.await();
+                    } else {
+                        waitNanos = Math.max(0, mNotFull.awaitNanos(waitNanos));
+                    }
+                }
+            }
+            if (mHeap.size() < mCapacity) {
+                added = mHeap.offer(e);
+            } else if (mOverflowPolicy == OverflowPolicy.DROP_LOWEST_PRIORITY
+                    && IndexedPriorityQueue.compare(e, mHeap.peekLast()) < 0) {
+                rejected = mHeap.peekLast();
+                mHeap.remove(rejected);
+                added = mHeap.offer(e);
+            } else {
+                rejected = e;
+                added = false;
+            }
+            if (added) {
+                mNotEmpty.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (added) {
+            onQueued(e);
+        }
+        if (rejected != null) {
+            onRejected(rejected);
+        }
+        return added;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            E e;
+            while ((e = mHeap.poll()) == null) {
+                mNotEmpty.await();
+            }
+            mNotFull.signal();
+            return e;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            E e;
+            while ((e = mHeap.poll()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            mNotFull.signal();
+            return e;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        mLock.lock();
+        try {
+            E e = mHeap.poll();
+            if (e != null) {
+                mNotFull.signal();
+            }
+            return e;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        mLock.lock();
+        try {
+            return mHeap.peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        mLock.lock();
+        try {
+            return mHeap.contains(o);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            boolean removed = mHeap.remove(o);
+            if (removed) {
+                mNotFull.signal();
+            }
+            return removed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mHeap.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            return mCapacity == Integer.MAX_VALUE
+                    ? Integer.MAX_VALUE : Math.max(0, mCapacity - mHeap.size());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            E e;
+            while (n < maxElements && (e = mHeap.poll()) != null) {
+                c.add(e);
+                n++;
+            }
+            if (n > 0) {
+                mNotFull.signalAll();
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            mHeap.clear();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued elements, in no particular order.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ArrayList<E>(mHeap);
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<E> it = snapshot.iterator();
+        return new Iterator<E>() {
+            private E mLast;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                mLast = it.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                IndexedPriorityBlockingQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}
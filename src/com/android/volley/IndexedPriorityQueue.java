@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min-heap that tracks the position of each element, so that an element whose
+ * ordering key changed can be moved in O(log n) with {@link #update(Object)}, and any element
+ * can be removed in O(log n).
+ *
+ * <p>Elements must be {@link Comparable}; they are ordered by their natural ordering and
+ * identified by identity. Not thread-safe.</p>
+ *
+ * @param <E> The type of elements held
+ */
+class IndexedPriorityQueue<E> extends AbstractQueue<E> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 11;
+
+    /** The heap; mHeap[0] is the least element. */
+    private Object[] mHeap;
+
+    /** Number of elements in the heap. */
+    private int mSize = 0;
+
+    /** Heap position of each element. */
+    private final Map<E, Integer> mPositions = new IdentityHashMap<E, Integer>();
+
+    IndexedPriorityQueue() {
+        mHeap = new Object[DEFAULT_INITIAL_CAPACITY];
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (mPositions.containsKey(e)) {
+            return false;
+        }
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize + (mSize >> 1) + 1);
+        }
+        mHeap[mSize] = e;
+        mPositions.put(e, mSize);
+        siftUp(mSize++);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        return mSize == 0 ? null : removeAt(0);
+    }
+
+    @Override
+    public E peek() {
+        return mSize == 0 ? null : elementAt(0);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return mPositions.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Integer position = mPositions.get(o);
+        if (position == null) {
+            return false;
+        }
+        removeAt(position);
+        return true;
+    }
+
+    /**
+     * Restores the position of an element whose ordering key has changed.
+     *
+     * @return false if the element is not in this queue
+     */
+    boolean update(E e) {
+        Integer position = mPositions.get(e);
+        if (position == null) {
+            return false;
+        }
+        if (siftUp(position) == position) {
+            siftDown(position);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the greatest element, i.e. the one that would be polled last, or null if empty.
+     * Runs in O(n).
+     */
+    E peekLast() {
+        if (mSize == 0) {
+            return null;
+        }
+        // The greatest element is a leaf; leaves occupy the second half of the heap.
+        E last = elementAt(mSize >>> 1);
+        for (int i = (mSize >>> 1) + 1; i < mSize; i++) {
+            E e = elementAt(i);
+            if (compare(e, last) > 0) {
+                last = e;
+            }
+        }
+        return last;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mHeap, 0, mSize, null);
+        mPositions.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns an iterator over the elements in heap order, which is not sorted order. The
+     * queue must not be modified while iterating.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int mCursor = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mCursor < mSize;
+            }
+
+            @Override
+            public E next() {
+                if (mCursor >= mSize) {
+                    throw new NoSuchElementException();
+                }
+                return elementAt(mCursor++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private E removeAt(int position) {
+        E removed = elementAt(position);
+        mPositions.remove(removed);
+        int last = --mSize;
+        if (position != last) {
+            E moved = elementAt(last);
+            mHeap[position] = moved;
+            mPositions.put(moved, position);
+            mHeap[last] = null;
+            if (siftUp(position) == position) {
+                siftDown(position);
+            }
+        } else {
+            mHeap[last] = null;
+        }
+        return removed;
+    }
+
+    /**
+     * Moves the element at position towards the root while it is less than its parent.
+     *
+     * @return The element's final position
+     */
+    private int siftUp(int position) {
+        E e = elementAt(position);
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            E p = elementAt(parent);
+            if (compare(e, p) >= 0) {
+                break;
+            }
+            mHeap[position] = p;
+            mPositions.put(p, position);
+            position = parent;
+        }
+        mHeap[position] = e;
+        mPositions.put(e, position);
+        return position;
+    }
+
+    /**
+     * Moves the element at position towards the leaves while it is greater than a child.
+     */
+    private void siftDown(int position) {
+        E e = elementAt(position);
+        int half = mSize >>> 1;
+        while (position < half) {
+            int child = (position << 1) + 1;
+            E c = elementAt(child);
+            int right = child + 1;
+            if (right < mSize && compare(c, elementAt(right)) > 0) {
+                child = right;
+                c = elementAt(child);
+            }
+            if (compare(e, c) <= 0) {
+                break;
+            }
+            mHeap[position] = c;
+            mPositions.put(c, position);
+            position = child;
+        }
+        mHeap[position] = e;
+        mPositions.put(e, position);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(int position) {
+        return (E) mHeap[position];
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> int compare(E a, E b) {
+        return ((Comparable<? super E>) a).compareTo(b);
+    }
+}
@@ -21,6 +21,8 @@ import android.os.Build;
 import android.os.Process;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -40,6 +42,10 @@ public class NetworkDispatcher extends Thread {
     private final Cache mCache;
     /** For posting responses and errors. */
     private final ResponseDelivery mDelivery;
+    /** The pool this dispatcher belongs to, or null if it is not managed by one. */
+    private final NetworkDispatcherPool mPool;
+    /** Runs parsing, cache writes and delivery, or null to run them on this thread. */
+    private Executor mParseExecutor;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
@@ -55,10 +61,32 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request> queue,
             Network network, Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread managed by the given pool.
+     *
+     * @param pool Pool to report idleness to and to ask before retiring, or null
+     */
+    NetworkDispatcher(BlockingQueue<Request> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, NetworkDispatcherPool pool) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mPool = pool;
+    }
+
+    /**
+     * Hands parsing, writing to cache and posting the response to the given executor, so that
+     * this thread can go on to the next request while that CPU work is done.
+     *
+     * @param parseExecutor Executor to parse on, or null to parse on this thread
+     */
+    void setParseExecutor(Executor parseExecutor) {
+        mParseExecutor = parseExecutor;
     }
 
     /**
@@ -77,7 +105,7 @@ public class NetworkDispatcher extends Thread {
         while (true) {
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                request = takeRequest();
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -85,53 +113,133 @@ public class NetworkDispatcher extends Thread {
                 }
                 continue;
             }
+            if (request == null) {
+                // Idle for the pool's keep-alive time; exit if the pool can spare us.
+                if (mPool.tryRetire(this)) {
+                    return;
+                }
+                continue;
+            }
 
-            try {
-                request.addMarker("network-queue-take");
+            processRequest(request);
+        }
+    }
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
-                }
+    /**
+     * Performs a single request taken off the network queue, and posts its response or error.
+     */
+    void processRequest(Request request) {
+        try {
+            request.addMarker("network-queue-take");
+            request.markDispatched();
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                return;
+            }
 
-                // Tag the request (if API >= 14)
-                if (Build.VERSION.SDK_INT >= 14) {
-                    TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
-                }
+            // If the request ran out of time while queued, don't bother performing it.
+            if (request.isPastDeadline()) {
+                request.addMarker("network-discard-deadline");
+                mDelivery.postError(request, new TimeoutError("Deadline passed while queued"));
+                return;
+            }
+
+            // Tag the request (if API >= 14)
+            if (Build.VERSION.SDK_INT >= 14) {
+                TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
+            }
 
-                // Perform the network request.
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
+            // Perform the network request, unless a response was handed in with it.
+            NetworkResponse networkResponse = request.takePrimedResponse();
+            if (networkResponse != null) {
+                request.addMarker("network-primed-response");
+            } else {
+                networkResponse = mNetwork.performRequest(request);
                 request.addMarker("network-http-complete");
+                request.recordFlightResponse(networkResponse);
+            }
 
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
+            // If the server returned 304 AND we delivered a response already,
+            // we're done -- don't deliver a second identical response.
+            if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                request.finish("not-modified");
+                return;
+            }
 
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
+            // Parse the response on the parse pool if there is one, or else here on the
+            // worker thread. The host slot is released as soon as the hand-off is made.
+            final Request parsedRequest = request;
+            final NetworkResponse parsedResponse = networkResponse;
+            Executor parseExecutor = mParseExecutor;
+            if (parseExecutor != null) {
+                parseExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        parseAndDeliver(parsedRequest, parsedResponse);
+                    }
+                });
+            } else {
+                parseAndDeliver(parsedRequest, parsedResponse);
+            }
+        } catch (VolleyError volleyError) {
+            request.recordFlightError(volleyError);
+            parseAndDeliverNetworkError(request, volleyError);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            mDelivery.postError(request, new VolleyError(e));
+        } finally {
+            if (mQueue instanceof PerHostBlockingQueue) {
+                // Let the next request to this host be taken.
+                ((PerHostBlockingQueue) mQueue).release(request);
+            }
+        }
+    }
 
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
+    /**
+     * Takes the next request from the queue, or returns null if this dispatcher belongs to an
+     * elastic pool and no request arrived within the pool's keep-alive time.
+     */
+    private Request takeRequest() throws InterruptedException {
+        if (mPool == null) {
+            return mQueue.take();
+        }
+        mPool.onDispatcherIdle();
+        try {
+            long keepAliveMs = mPool.getKeepAliveMs();
+            if (keepAliveMs <= 0) {
+                return mQueue.take();
+            }
+            return mQueue.poll(keepAliveMs, TimeUnit.MILLISECONDS);
+        } finally {
+            mPool.onDispatcherBusy();
+        }
+    }
 
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError volleyError) {
-                parseAndDeliverNetworkError(request, volleyError);
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                mDelivery.postError(request, new VolleyError(e));
+    /**
+     * Parses a network response, writes it to cache if applicable and posts it back.
+     */
+    private void parseAndDeliver(Request request, NetworkResponse networkResponse) {
+        try {
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+
+            // Write to cache if applicable.
+            // TODO: Only update cache metadata instead of entire record for 304s.
+            if (request.shouldCache() && response.cacheEntry != null) {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.recordResolvedCacheEntry(response.cacheEntry);
+                request.addMarker("network-cache-written");
             }
+
+            // Post the response back.
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            mDelivery.postError(request, new VolleyError(e));
         }
     }
 
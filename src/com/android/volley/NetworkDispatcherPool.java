@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The set of {@link NetworkDispatcher}s serving a network queue.
+ *
+ * <p>A fixed pool keeps <code>minSize</code> dispatchers blocked on the queue for as long as it
+ * runs. An elastic pool (<code>maxSize &gt; minSize</code>) starts further dispatchers when
+ * requests are queued faster than the idle dispatchers can take them, and lets dispatchers
+ * beyond <code>minSize</code> retire once they have been idle for <code>keepAliveMs</code>.</p>
+ */
+@SuppressWarnings("rawtypes")
+class NetworkDispatcherPool {
+
+    /** The queue of requests going out to the network. */
+    private final BlockingQueue<Request> mQueue;
+
+    /** The network interface for processing requests. */
+    private final Network mNetwork;
+
+    /** The cache to write to. */
+    private final Cache mCache;
+
+    /** For posting responses and errors. */
+    private final ResponseDelivery mDelivery;
+
+    /** Number of dispatchers kept alive regardless of load. */
+    private final int mMinSize;
+
+    /** Upper bound on the number of dispatchers. */
+    private final int mMaxSize;
+
+    /** Idle time after which a dispatcher beyond the minimum retires. */
+    private final long mKeepAliveMs;
+
+    /** The running dispatchers. */
+    private final Set<NetworkDispatcher> mDispatchers =
+            Collections.newSetFromMap(new ConcurrentHashMap<NetworkDispatcher, Boolean>());
+
+    /** Number of dispatchers started or about to be started, and not yet retired. */
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    /** Number of dispatchers currently waiting on the queue. */
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    /** Whether the pool has been started and not stopped since. */
+    private volatile boolean mRunning = false;
+
+    /** Executor the dispatchers hand parsing to, or null to parse on the dispatchers. */
+    private volatile Executor mParseExecutor;
+
+    /**
+     * @param queue Queue of requests going out to the network
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param minSize Number of dispatchers kept alive regardless of load
+     * @param maxSize Upper bound on the number of dispatchers
+     * @param keepAliveMs Idle time after which a dispatcher beyond minSize retires
+     */
+    NetworkDispatcherPool(BlockingQueue<Request> queue, Network network, Cache cache,
+            ResponseDelivery delivery, int minSize, int maxSize, long keepAliveMs) {
+        if (minSize < 0 || maxSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid pool bounds " + minSize + ".." + maxSize);
+        }
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Sets the executor that dispatchers started from now on hand parsing to; see
+     * {@link NetworkDispatcher#setParseExecutor(Executor)}.
+     */
+    void setParseExecutor(Executor parseExecutor) {
+        mParseExecutor = parseExecutor;
+    }
+
+    /**
+     * Starts the minimum number of dispatchers, plus any needed for requests already queued.
+     */
+    void start() {
+        mRunning = true;
+        for (int i = 0; i < mMinSize; i++) {
+            mSize.incrementAndGet();
+            startDispatcher();
+        }
+        onRequestQueued();
+    }
+
+    /**
+     * Stops all dispatchers.
+     */
+    void stop() {
+        mRunning = false;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+        mSize.set(0);
+    }
+
+    /**
+     * Called whenever a request is added to the queue; starts another dispatcher if the
+     * backlog exceeds the idle dispatchers and the pool may still grow. At most one dispatcher
+     * is started per call, so the pool grows by no more than one per queued request.
+     */
+    void onRequestQueued() {
+        if (!mRunning || !isElastic()) {
+            return;
+        }
+        while (backlog() > mIdleCount.get()) {
+            int size = mSize.get();
+            if (size >= mMaxSize) {
+                return;
+            }
+            if (mSize.compareAndSet(size, size + 1)) {
+                startDispatcher();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true if this pool grows and shrinks with load.
+     */
+    boolean isElastic() {
+        return mMaxSize > mMinSize;
+    }
+
+    /**
+     * Returns the idle time after which a dispatcher beyond the minimum retires, or 0 if
+     * dispatchers should block on the queue forever.
+     */
+    long getKeepAliveMs() {
+        return isElastic() ? mKeepAliveMs : 0;
+    }
+
+    /**
+     * Returns the number of live dispatchers.
+     */
+    int getSize() {
+        return mSize.get();
+    }
+
+    /**
+     * Returns the number of dispatchers currently waiting for a request.
+     */
+    int getIdleCount() {
+        return mIdleCount.get();
+    }
+
+    /** Called by a dispatcher right before it waits on the queue. */
+    void onDispatcherIdle() {
+        mIdleCount.incrementAndGet();
+    }
+
+    /** Called by a dispatcher once it stops waiting on the queue. */
+    void onDispatcherBusy() {
+        mIdleCount.decrementAndGet();
+    }
+
+    /**
+     * Called by a dispatcher that has been idle for the keep-alive time.
+     *
+     * @return true if the dispatcher has been removed from the pool and should exit
+     */
+    boolean tryRetire(NetworkDispatcher dispatcher) {
+        if (!mDispatchers.contains(dispatcher)) {
+            // The pool has been stopped (and maybe restarted) since this dispatcher started.
+            return true;
+        }
+        while (true) {
+            int size = mSize.get();
+            if (size <= mMinSize) {
+                return false;
+            }
+            if (mSize.compareAndSet(size, size - 1)) {
+                mDispatchers.remove(dispatcher);
+                if (VolleyLog.sDebug) {
+                    VolleyLog.v("Retiring idle network dispatcher, pool size=%d", size - 1);
+                }
+                // A request may have been queued while we were deciding to retire.
+                onRequestQueued();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of queued requests that a dispatcher could take right now.
+     */
+    private int backlog() {
+        if (mQueue instanceof PerHostBlockingQueue) {
+            // Requests held back by a per-host limit don't warrant another dispatcher.
+            return ((PerHostBlockingQueue) mQueue).dispatchableSize();
+        }
+        return mQueue.size();
+    }
+
+    private void startDispatcher() {
+        NetworkDispatcher dispatcher =
+                new NetworkDispatcher(mQueue, mNetwork, mCache, mDelivery, this);
+        dispatcher.setParseExecutor(mParseExecutor);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+}
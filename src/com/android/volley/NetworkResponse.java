@@ -18,6 +18,9 @@ package com.android.volley;
 
 import org.apache.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
@@ -34,12 +37,42 @@ public class NetworkResponse {
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified) {
+        this(statusCode, data, null, headers, notModified);
+    }
+
+    /**
+     * Creates a new network response whose body is read from a stream rather than held in
+     * memory. Only handed to requests that {@link Request#acceptsStreamingResponse() accept}
+     * streaming responses.
+     * @param statusCode the HTTP status code
+     * @param source Source of the response body
+     * @param headers Headers returned with this response, or null for none
+     * @param notModified True if the server returned a 304 and the data was already in cache
+     */
+    public NetworkResponse(int statusCode, Cache.DataSource source, Map<String, String> headers,
+            boolean notModified) {
+        this(statusCode, null, source, headers, notModified);
+    }
+
+    private NetworkResponse(int statusCode, byte[] data, Cache.DataSource source,
+            Map<String, String> headers, boolean notModified) {
         this.statusCode = statusCode;
         this.data = data;
+        this.source = source;
         this.headers = headers;
         this.notModified = notModified;
     }
 
+    /**
+     * Creates a response for a cache entry, streaming its data if it isn't held in memory.
+     */
+    static NetworkResponse fromCacheEntry(Cache.Entry entry) {
+        return entry.data != null
+                ? new NetworkResponse(HttpStatus.SC_OK, entry.data, entry.responseHeaders, false)
+                : new NetworkResponse(HttpStatus.SC_OK, entry.source, entry.responseHeaders,
+                        false);
+    }
+
     public NetworkResponse(byte[] data) {
         this(HttpStatus.SC_OK, data, Collections.<String, String>emptyMap(), false);
     }
@@ -51,12 +84,20 @@ public class NetworkResponse {
     /** The HTTP status code. */
     public final int statusCode;
 
-    /** Raw data from this response. */
+    /** Raw data from this response, or null if it is only available from {@link #source}. */
     public final byte[] data;
 
+    /** Source of the data when {@link #data} is null. */
+    public final Cache.DataSource source;
+
     /** Response headers. */
     public final Map<String, String> headers;
 
     /** True if the server returned a 304 (Not Modified). */
     public final boolean notModified;
+
+    /** Opens a new stream over the data, wherever it is held. The caller must close it. */
+    public InputStream openData() throws IOException {
+        return data != null ? new ByteArrayInputStream(data) : source.open();
+    }
 }
\ No newline at end of file
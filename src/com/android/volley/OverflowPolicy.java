@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * What a bounded queue does with an element offered while it is full; see
+ * {@link RequestQueue#setQueueCapacity(int, int, OverflowPolicy)}. Shed requests fail with a
+ * {@link RequestRejectedError}.
+ */
+public enum OverflowPolicy {
+    /** Shed the new element. */
+    REJECT_NEWEST,
+    /**
+     * Shed the lowest ranked element, by priority and then age, among those queued and the
+     * new one.
+     */
+    DROP_LOWEST_PRIORITY,
+    /**
+     * Make {@link RequestQueue#add(Request)} wait for room. Requests moved between queues by
+     * the dispatchers are not allowed to wait on the delivery thread or an executor, and are
+     * rejected instead.
+     */
+    BLOCK
+}
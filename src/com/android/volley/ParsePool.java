@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of threads that parse responses, so that CPU-heavy parsing (large JSON,
+ * bitmap decoding) doesn't hold up the dispatcher threads doing cache and network I/O.
+ *
+ * <p>When every parse thread is busy and the backlog is full, the dispatcher handing over a
+ * response parses it itself. That slows the intake of new requests until parsing catches up,
+ * instead of letting parsed-but-undelivered work pile up without bound.</p>
+ */
+class ParsePool implements Executor {
+
+    /** Number of waiting parse tasks allowed per parse thread. */
+    private static final int BACKLOG_PER_THREAD = 4;
+
+    /** Idle time after which a parse thread stops. */
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param threads Number of parse threads
+     */
+    ParsePool(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * BACKLOG_PER_THREAD),
+                new ParseThreadFactory(), new CallerRuns());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Stops the parse threads once the tasks already handed over have run.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Runs a task on the submitting thread, including after shutdown, so that a response that
+     * was already fetched is still delivered.
+     */
+    private static class CallerRuns implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            task.run();
+        }
+    }
+
+    private static class ParseThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable task) {
+            return new Thread("Volley-Parse-" + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    task.run();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking queue of requests that schedules fairly across hosts.
+ *
+ * <p>Requests are kept in one priority queue per host (see {@link Request#getHost()}). A take
+ * hands out the highest priority request among the hosts that are below the per-host
+ * concurrency limit, and rotates between hosts whose next requests share that priority.
+ * Priorities are compared as they stand after any aging; see {@link Request#compareTo}.
+ * A request taken from this queue counts against its host's limit until it is passed to
+ * {@link #release(Request)}.</p>
+ */
+@SuppressWarnings("rawtypes")
+class PerHostBlockingQueue extends AbstractQueue<Request> implements BlockingQueue<Request> {
+
+    /** Guards all state below. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signaled when a request may have become available to take. */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /** Signaled when a waiting request is removed. */
+    private final Condition mNotFull = mLock.newCondition();
+
+    /** Per-host state, keyed by host. */
+    private final Map<String, HostQueue> mHosts = new HashMap<String, HostQueue>();
+
+    /** Hosts in the order they are visited for round-robin. */
+    private final List<HostQueue> mRing = new ArrayList<HostQueue>();
+
+    /** For each priority level, the ring position to start looking from on the next take. */
+    private final int[] mNextHost = new int[Request.Priority.values().length];
+
+    /** The effective priority level picked by the last call to {@link #selectHost()}. */
+    private int mSelectedLevel;
+
+    /** Number of requests waiting in this queue. */
+    private int mCount = 0;
+
+    /** Maximum number of taken, unreleased requests per host. */
+    private volatile int mMaxPerHost = Integer.MAX_VALUE;
+
+    /** Maximum number of waiting requests, across all hosts. */
+    private int mCapacity = Integer.MAX_VALUE;
+
+    /** What to do when a request is offered while the queue is full. */
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * Sets the maximum number of requests to the same host that may be taken from this queue
+     * and not yet released.
+     */
+    void setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be at least 1");
+        }
+        mLock.lock();
+        try {
+            mMaxPerHost = maxPerHost;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Bounds the number of waiting requests. Taken, unreleased requests don't count.
+     *
+     * @param capacity Maximum number of waiting requests
+     * @param overflowPolicy What to do when a request is offered while the queue is full
+     */
+    void setCapacity(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mLock.lock();
+        try {
+            mCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Called, without the queue lock held, after a request has been queued.
+     */
+    void onQueued(Request request) {
+    }
+
+    /**
+     * Called, without the queue lock held, for each request shed because the queue was full:
+     * either the request being offered or, with
+     * {@link OverflowPolicy#DROP_LOWEST_PRIORITY}, a waiting request it displaced.
+     */
+    void onRejected(Request request) {
+    }
+
+    /**
+     * Returns the host slot held by a request previously taken from this queue.
+     */
+    void release(Request request) {
+        mLock.lock();
+        try {
+            HostQueue host = mHosts.get(hostOf(request));
+            if (host == null || host.active == 0) {
+                return;
+            }
+            host.active--;
+            retireIfUnused(host);
+            mAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Runs keyChange while holding the queue lock, so that the request can't be added or moved
+     * while its key changes, and then, if the request is waiting in this queue, moves it to
+     * its new position in O(log n).
+     *
+     * @param request The request whose ordering key changes
+     * @param keyChange Changes the ordering key of the request, e.g. its priority
+     * @return true if the request was waiting
+     */
+    boolean changeKeyOrSet(Request request, Runnable keyChange) {
+        mLock.lock();
+        try {
+            keyChange.run();
+            HostQueue host = mHosts.get(hostOf(request));
+            if (host == null || !host.pending.contains(request)) {
+                return false;
+            }
+            host.pending.update(request);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiting requests whose host is below the concurrency limit,
+     * i.e. those that could be taken right now.
+     */
+    int dispatchableSize() {
+        mLock.lock();
+        try {
+            int count = 0;
+            for (HostQueue host : mRing) {
+                if (host.active < mMaxPerHost) {
+                    count += host.pending.size();
+                }
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the request if there is room. If the queue is full, the request or the lowest
+     * ranked waiting request is shed according to the overflow policy;
+     * {@link OverflowPolicy#BLOCK} sheds the new request rather than wait.
+     *
+     * @return true if the request was queued
+     */
+    @Override
+    public boolean offer(Request request) {
+        try {
+            return enqueue(request, 0);
+        } catch (InterruptedException e) {
+            // Can't happen; we never wait.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the request, waiting for room if the queue is full and the overflow policy is
+     * {@link OverflowPolicy#BLOCK}.
+     */
+    @Override
+    public void put(Request request) throws InterruptedException {
+        enqueue(request, -1);
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return enqueue(request, Math.max(1, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Adds the request, applying the overflow policy if the queue is full.
+     *
+     * @param waitNanos How long to wait for room under the blocking policy: negative to wait
+     *        as long as it takes, 0 not to wait
+     * @return true if the request was queued
+     */
+    private boolean enqueue(Request request, long waitNanos) throws InterruptedException {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        boolean added = false;
+        Request rejected = null;
+        mLock.lockInterruptibly();
+        try {
+            if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+                while (mCount >= mCapacity && waitNanos != 0) {
+                    if (waitNanos < 0) {
+                        mNotFull.await();
+                    } else {
+                        waitNanos = Math.max(0, mNotFull.awaitNanos(waitNanos));
+                    }
+                }
+            }
+            if (mCount >= mCapacity) {
+                Request last = mOverflowPolicy == OverflowPolicy.DROP_LOWEST_PRIORITY
+                        ? peekLast() : null;
+                if (last != null && IndexedPriorityQueue.compare(request, last) < 0) {
+                    removeWaiting(last);
+                    rejected = last;
+                } else {
+                    rejected = request;
+                    return false;
+                }
+            }
+            String key = hostOf(request);
+            HostQueue host = mHosts.get(key);
+            if (host == null) {
+                host = new HostQueue(key);
+                mHosts.put(key, host);
+                mRing.add(host);
+            }
+            added = host.pending.offer(request);
+            if (added) {
+                mCount++;
+                mAvailable.signal();
+            }
+        } finally {
+            mLock.unlock();
+            if (added) {
+                onQueued(request);
+            }
+            if (rejected != null) {
+                onRejected(rejected);
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request request;
+            while ((request = dequeue()) == null) {
+                mAvailable.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mAvailable.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request peek() {
+        mLock.lock();
+        try {
+            int index = selectHost();
+            return index < 0 ? null : mRing.get(index).pending.peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            return removeWaiting((Request) o);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            return mCapacity == Integer.MAX_VALUE
+                    ? Integer.MAX_VALUE : Math.max(0, mCapacity - mCount);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes waiting requests, hosts at their limit included, in priority order per host.
+     * Drained requests never reach a dispatcher to release a host slot, so they take none.
+     */
+    @Override
+    public int drainTo(Collection<? super Request> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            for (HostQueue host : new ArrayList<HostQueue>(mRing)) {
+                Request request;
+                while (n < maxElements && (request = host.pending.poll()) != null) {
+                    c.add(request);
+                    mCount--;
+                    n++;
+                }
+                retireIfUnused(host);
+            }
+            if (n > 0) {
+                mNotFull.signalAll();
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the waiting requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        final List<Request> snapshot = new ArrayList<Request>();
+        mLock.lock();
+        try {
+            for (HostQueue host : mRing) {
+                snapshot.addAll(host.pending);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Request> it = snapshot.iterator();
+        return new Iterator<Request>() {
+            private Request mLast;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Request next() {
+                mLast = it.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                PerHostBlockingQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    /**
+     * Removes and returns the next request to dispatch, marking its host slot as taken, or
+     * returns null if no host below the limit has a waiting request. Must hold the lock.
+     */
+    private Request dequeue() {
+        int index = selectHost();
+        if (index < 0) {
+            return null;
+        }
+        HostQueue host = mRing.get(index);
+        Request request = host.pending.poll();
+        mNextHost[mSelectedLevel] = index + 1;
+        host.active++;
+        mCount--;
+        mNotFull.signal();
+        return request;
+    }
+
+    /**
+     * Picks the ring position of the host to serve next: among hosts below the limit, those
+     * whose next request has the highest (effective) priority, taken in turn. Returns -1 if
+     * none can be served. Must hold the lock.
+     */
+    private int selectHost() {
+        int size = mRing.size();
+        int maxPerHost = mMaxPerHost;
+        long now = SystemClock.elapsedRealtime();
+        int top = -1;
+        for (int i = 0; i < size; i++) {
+            HostQueue host = mRing.get(i);
+            if (host.active < maxPerHost && !host.pending.isEmpty()) {
+                top = Math.max(top, host.pending.peek().getEffectivePriorityLevel(now));
+            }
+        }
+        if (top < 0) {
+            return -1;
+        }
+        int start = mNextHost[top];
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            HostQueue host = mRing.get(index);
+            if (host.active < maxPerHost && !host.pending.isEmpty()
+                    && host.pending.peek().getEffectivePriorityLevel(now) == top) {
+                mSelectedLevel = top;
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a waiting request. Must hold the lock.
+     *
+     * @return false if the request was not waiting in this queue
+     */
+    private boolean removeWaiting(Request request) {
+        HostQueue host = mHosts.get(hostOf(request));
+        if (host == null || !host.pending.remove(request)) {
+            return false;
+        }
+        mCount--;
+        retireIfUnused(host);
+        mNotFull.signal();
+        return true;
+    }
+
+    /**
+     * Returns the lowest ranked waiting request across all hosts, or null if there is none.
+     * Must hold the lock.
+     */
+    private Request peekLast() {
+        Request last = null;
+        for (HostQueue host : mRing) {
+            Request candidate = host.pending.peekLast();
+            if (candidate != null
+                    && (last == null || IndexedPriorityQueue.compare(candidate, last) > 0)) {
+                last = candidate;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Drops the state for a host that has nothing waiting or running. Must hold the lock.
+     */
+    private void retireIfUnused(HostQueue host) {
+        if (host.active == 0 && host.pending.isEmpty()) {
+            mHosts.remove(host.host);
+            mRing.remove(host);
+        }
+    }
+
+    private static String hostOf(Request request) {
+        String host = request.getHost();
+        return host == null ? "" : host;
+    }
+
+    /**
+     * Requests waiting for, and slots taken on, a single host.
+     */
+    private static class HostQueue {
+        final String host;
+        final IndexedPriorityQueue<Request> pending = new IndexedPriorityQueue<Request>();
+        int active = 0;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+}
@@ -29,6 +29,8 @@ import com.android.volley.VolleyLog.MarkerLog;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Map;
 
@@ -63,6 +65,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** URL of this request. */
     private final String mUrl;
 
+    /** Host of {@link #mUrl}, or null if it has none. */
+    private final String mHost;
+
     /** Default tag for {@link TrafficStats}. */
     private final int mDefaultTrafficStatsTag;
 
@@ -87,6 +92,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     // A cheap variant of request tracing used to dump slow requests.
     private long mRequestBirthTime = 0;
 
+    /** Time at which this request was added to its queue, in elapsed realtime millis. */
+    private long mQueuedAtMs = 0;
+
+    /** Time at which a dispatcher last took this request off a queue; 0 if none has. */
+    private volatile long mDispatchedAtMs = 0;
+
+    /**
+     * Time spent queued that raises this request's effective priority by one level, or 0 if
+     * the queue doesn't age requests.
+     */
+    private long mAgingIntervalMs = 0;
+
+    /** Elapsed realtime by which this request must complete, or 0 if it has no deadline. */
+    private volatile long mDeadlineMs = 0;
+
     /** Threshold at which we should log the request (even when debug logging is not enabled). */
     private static final long SLOW_REQUEST_THRESHOLD_MS = 3000;
 
@@ -100,6 +120,36 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Cache.Entry mCacheEntry = null;
 
+    /**
+     * A network response obtained for this request by other means, e.g. as part of a batch,
+     * to be used instead of performing the request.
+     */
+    private NetworkResponse mPrimedResponse = null;
+
+    /**
+     * The cache entry this request was resolved with, from cache or from the network, kept so
+     * it can be handed to identical requests staged behind this one.
+     */
+    private volatile Cache.Entry mResolvedCacheEntry = null;
+
+    /** A cache entry handed over by an identical request, to use instead of reading the cache. */
+    private Cache.Entry mPrimedCacheEntry = null;
+
+    /** Whether this request may share one network response with identical requests. */
+    private boolean mSingleFlight = false;
+
+    /** Whether this request holds the in flight marker for its cache key. */
+    private volatile boolean mCacheKeyInFlight = false;
+
+    /** Key of the flight of identical requests this request leads, or null if it leads none. */
+    private String mFlightKey = null;
+
+    /** The network response this request got while leading a flight. */
+    private volatile NetworkResponse mFlightResponse = null;
+
+    /** The network error this request got while leading a flight. */
+    private volatile VolleyError mFlightError = null;
+
     /** Extra parameters to be added to the request headers */
     private Map<String, String> mRequestHeaders = null;
 
@@ -114,7 +164,7 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     private Object mTag;
     
     /** {@link Priority} for this request     */
-    private Priority mPriority;
+    private volatile Priority mPriority;
 
     /**
      * Creates a new request with the given method (one of the values from {@link Method}),
@@ -149,7 +199,8 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         mErrorListener = listener;
         setRetryPolicy((retryPolicy == null) ? new DefaultRetryPolicy() : retryPolicy);
 
-        mDefaultTrafficStatsTag = TextUtils.isEmpty(url) ? 0: Uri.parse(url).getHost().hashCode();
+        mHost = TextUtils.isEmpty(url) ? null : Uri.parse(url).getHost();
+        mDefaultTrafficStatsTag = (mHost == null) ? 0 : mHost.hashCode();
     }
 
     /**
@@ -164,7 +215,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * tag by {@link RequestQueue#cancelAll(Object)}.
      */
     public void setTag(Object tag) {
+        Object oldTag = mTag;
         mTag = tag;
+        if (mRequestQueue != null && oldTag != tag) {
+            mRequestQueue.onTagChanged(this, oldTag);
+        }
     }
 
     /**
@@ -182,6 +237,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mDefaultTrafficStatsTag;
     }
 
+    /**
+     * Returns the host this request is sent to, or null if the URL has none. Requests are
+     * scheduled fairly across hosts, and concurrency limits apply per host; see
+     * {@link RequestQueue#setMaxRequestsPerHost(int)}.
+     */
+    public String getHost() {
+        return mHost;
+    }
+
     /**
      * Sets the retry policy for this request.
      */
@@ -260,6 +324,86 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Records the time this request was added to a queue, and how that queue ages requests.
+     * Used by {@link RequestQueue}; must be called before the request is enqueued.
+     *
+     * @param queuedAtMs Elapsed realtime at which the request was added
+     * @param agingIntervalMs Time spent queued that raises the effective priority by one
+     *        level, or 0 to order strictly by priority
+     */
+    void setQueuedAt(long queuedAtMs, long agingIntervalMs) {
+        mQueuedAtMs = queuedAtMs;
+        mAgingIntervalMs = agingIntervalMs;
+    }
+
+    /**
+     * Called by a dispatcher when it takes this request off a queue.
+     */
+    void markDispatched() {
+        mDispatchedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns how long this request waited in queues before a dispatcher last took it up, or
+     * -1 if it has not been taken up yet.
+     */
+    public long getQueueWaitMs() {
+        long dispatchedAtMs = mDispatchedAtMs;
+        return dispatchedAtMs == 0 ? -1 : dispatchedAtMs - mQueuedAtMs;
+    }
+
+    /**
+     * Sets an absolute deadline for this request, covering the time it spends queued, every
+     * network attempt and the retries between them. A request still waiting for a dispatcher
+     * once its deadline has passed is failed with a {@link TimeoutError} without doing any I/O,
+     * each attempt's socket timeout is cut to the time that remains, and no retry is made
+     * after the deadline.
+     *
+     * @param deadlineMs Deadline in the {@link SystemClock#elapsedRealtime()} time base, e.g.
+     *        <code>SystemClock.elapsedRealtime() + 5000</code>, or 0 for none
+     */
+    public void setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * Returns the deadline set with {@link #setDeadline(long)}, or 0 if there is none.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns the time left until this request's deadline in milliseconds, which is negative
+     * once it has passed, or {@link Long#MAX_VALUE} if the request has no deadline.
+     */
+    public long getRemainingTimeMs() {
+        long deadlineMs = mDeadlineMs;
+        return deadlineMs == 0 ? Long.MAX_VALUE : deadlineMs - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns true if this request has a deadline and it has passed.
+     */
+    public boolean isPastDeadline() {
+        return getRemainingTimeMs() <= 0;
+    }
+
+    /**
+     * Returns the ordinal of the priority this request is served at, at the given time. This is
+     * {@link #getPriority()}, raised by one level per aging interval spent queued, up to
+     * {@link Priority#IMMEDIATE}.
+     */
+    int getEffectivePriorityLevel(long nowMs) {
+        int level = mPriority.ordinal();
+        if (mAgingIntervalMs > 0) {
+            long aged = level + (nowMs - mQueuedAtMs) / mAgingIntervalMs;
+            level = (int) Math.min(aged, Priority.IMMEDIATE.ordinal());
+        }
+        return level;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -289,6 +433,172 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCacheEntry;
     }
 
+    /**
+     * Records the cache entry this request was resolved with. Called by the dispatchers.
+     */
+    void recordResolvedCacheEntry(Cache.Entry entry) {
+        mResolvedCacheEntry = entry;
+    }
+
+    /**
+     * Returns the cache entry this request was resolved with, or null if there is none.
+     */
+    Cache.Entry getResolvedCacheEntry() {
+        return mResolvedCacheEntry;
+    }
+
+    /**
+     * Gives this request a cache entry to triage instead of reading its cache key from the
+     * cache. Used by {@link RequestQueue} when an identical request finishes.
+     */
+    void setPrimedCacheEntry(Cache.Entry entry) {
+        mPrimedCacheEntry = entry;
+    }
+
+    /**
+     * Returns the cache entry this request was primed with and forgets it, or returns null if
+     * there is none.
+     */
+    Cache.Entry takePrimedCacheEntry() {
+        Cache.Entry entry = mPrimedCacheEntry;
+        mPrimedCacheEntry = null;
+        return entry;
+    }
+
+    /**
+     * Gives this request a network response to use instead of performing it. Used by
+     * {@link RequestQueue#addWithResponse(Request, NetworkResponse)}.
+     */
+    void setPrimedResponse(NetworkResponse response) {
+        mPrimedResponse = response;
+    }
+
+    /**
+     * Returns the network response this request was primed with and forgets it, or returns
+     * null if there is none.
+     */
+    NetworkResponse takePrimedResponse() {
+        NetworkResponse response = mPrimedResponse;
+        mPrimedResponse = null;
+        return response;
+    }
+
+    /**
+     * Set whether this request may be collapsed with identical requests, i.e. ones with the
+     * same {@link #getSingleFlightKey()}, that are in flight at the same time. Only one of them
+     * goes out to the network, and its network response, or error, is handed to the others to
+     * parse and deliver. Only safe for requests without side effects, or whose duplicates are
+     * meant to take effect once.
+     *
+     * <p>Applies to requests that are not cached (see {@link #shouldCache()}); cached requests
+     * are already collapsed by cache key.</p>
+     */
+    public void setSingleFlight(boolean singleFlight) {
+        mSingleFlight = singleFlight;
+    }
+
+    /**
+     * Returns true if this request may be collapsed with identical requests in flight.
+     */
+    public boolean isSingleFlight() {
+        return mSingleFlight;
+    }
+
+    /**
+     * Returns the key identical requests share for the purpose of {@link #setSingleFlight}:
+     * the method, the URL and a digest of the body. Returns null if the body can't be had,
+     * in which case the request is not collapsed.
+     */
+    public String getSingleFlightKey() {
+        byte[] body = null;
+        if (mMethod == Method.POST || mMethod == Method.PUT) {
+            try {
+                body = getBody();
+            } catch (AuthFailureError e) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(mMethod).append(':').append(getUrl());
+        if (body != null) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+                key.append(':');
+                for (byte b : digest) {
+                    key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                            .append(Character.forDigit(b & 0xf, 16));
+                }
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Marks this request as holding, or no longer holding, the in flight marker for its cache
+     * key, which requests with the same cache key are staged behind.
+     */
+    void setCacheKeyInFlight(boolean inFlight) {
+        mCacheKeyInFlight = inFlight;
+    }
+
+    /**
+     * Returns whether this request holds the in flight marker for its cache key.
+     */
+    boolean isCacheKeyInFlight() {
+        return mCacheKeyInFlight;
+    }
+
+    /**
+     * Marks this request as leading the flight of identical requests with the given key, or,
+     * with null, as leading none.
+     */
+    void setFlightKey(String flightKey) {
+        mFlightKey = flightKey;
+    }
+
+    /**
+     * Returns the key of the flight this request leads, or null if it leads none.
+     */
+    String getFlightKey() {
+        return mFlightKey;
+    }
+
+    /**
+     * Keeps the network response for the identical requests waiting on this one, if it leads
+     * a flight.
+     */
+    void recordFlightResponse(NetworkResponse response) {
+        if (mFlightKey != null) {
+            mFlightResponse = response;
+        }
+    }
+
+    /**
+     * Keeps the network error for the identical requests waiting on this one, if it leads a
+     * flight.
+     */
+    void recordFlightError(VolleyError error) {
+        if (mFlightKey != null) {
+            mFlightError = error;
+        }
+    }
+
+    /**
+     * Returns the network response recorded while leading a flight, or null if there is none.
+     */
+    NetworkResponse getFlightResponse() {
+        return mFlightResponse;
+    }
+
+    /**
+     * Returns the network error recorded while leading a flight, or null if there is none.
+     */
+    VolleyError getFlightError() {
+        return mFlightError;
+    }
+
     /**
      * Mark this request as canceled.  No callback will be delivered.
      */
@@ -462,7 +772,8 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /**
      * Sets the priority for this request
      * 
-     * @throws IllegalStateException If priority is changed after adding to request queue
+     * @throws IllegalStateException If priority is changed after adding to request queue; use
+     * {@link RequestQueue#setPriority(Request, Priority)} for requests already added
      */
     public void setPriority(Priority priority) throws IllegalStateException {
         
@@ -472,6 +783,14 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         mPriority = priority;
     }
 
+    /**
+     * Sets the priority of a request that has been added to a queue. Only called by
+     * {@link RequestQueue}, which repositions the request in whichever queue holds it.
+     */
+    void setQueuedPriority(Priority priority) {
+        mPriority = priority;
+    }
+
     /**
      * Returns the {@link Priority} of this request; {@link Priority#NORMAL} by default.
      */
@@ -483,9 +802,17 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed
      * per retry attempt if a backoff is specified via backoffTimeout()). If there are no retry
      * attempts remaining, this will cause delivery of a {@link TimeoutError} error.
+     *
+     * <p>If the request has a deadline, the timeout is cut to the time that remains, but is
+     * never less than 1 ms, since 0 would mean no timeout at all.</p>
      */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        int timeoutMs = mRetryPolicy.getCurrentTimeout();
+        long remainingMs = getRemainingTimeMs();
+        if (remainingMs < timeoutMs) {
+            timeoutMs = (int) Math.max(1, remainingMs);
+        }
+        return timeoutMs;
     }
 
     /**
@@ -510,12 +837,23 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mResponseDelivered;
     }
 
+    /**
+     * Returns true if {@link #parseNetworkResponse(NetworkResponse)} can read the body through
+     * {@link NetworkResponse#openData()} when {@link NetworkResponse#data} is null. Cache hits
+     * for such requests are then parsed straight from the storage of a {@link StreamingCache}
+     * instead of being read into memory first. Subclasses that parse incrementally should override this.
+     */
+    public boolean acceptsStreamingResponse() {
+        return false;
+    }
+
     /**
      * Subclasses must implement this to parse the raw network response
      * and return an appropriate response type. This method will be
      * called from a worker thread.  The response will not be delivered
      * if you return null.
-     * @param response Response from the network
+     * @param response Response from the network; its data is null, and must be read through
+     *     {@link NetworkResponse#openData()}, only if {@link #acceptsStreamingResponse()}
      * @return The parsed response, or null in the case of an error
      */
     abstract protected Response<T> parseNetworkResponse(NetworkResponse response);
@@ -556,9 +894,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /**
      * Our comparator sorts from high to low priority, and secondarily by
      * sequence number to provide FIFO ordering.
+     *
+     * <p>If the queue ages requests, priorities are compared as they stand after aging. Since
+     * every queued request ages at the same rate, that order doesn't change over time: it is
+     * the order of the time each request was queued, less one aging interval per priority
+     * level. Requests in one queue always share its interval, since
+     * {@link RequestQueue#setPriorityAging(long)} can't change it while any are queued.</p>
      */
     @Override
     public int compareTo(Request<T> other) {
+        if (mAgingIntervalMs > 0 && mAgingIntervalMs == other.mAgingIntervalMs) {
+            long left = this.mQueuedAtMs - this.getPriority().ordinal() * mAgingIntervalMs;
+            long right = other.mQueuedAtMs - other.getPriority().ordinal() * mAgingIntervalMs;
+            if (left != right) {
+                return left < right ? -1 : 1;
+            }
+            return this.mSequence - other.mSequence;
+        }
+
         Priority left = this.getPriority();
         Priority right = other.getPriority();
 
@@ -18,15 +18,22 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -42,36 +49,67 @@ public class RequestQueue {
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
     /**
-     * Staging area for requests that already have a duplicate request in flight.
-     *
-     * <ul>
-     *     <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
-     *          key.</li>
-     *     <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     *          is <em>not</em> contained in that list. Is null if no requests are staged.</li>
-     * </ul>
+     * Staging area for requests that already have a duplicate request in flight, keyed by
+     * cache key. Lock striped, so adds and finishes for different keys don't contend.
      */
-    private final Map<String, Queue<Request>> mWaitingRequests =
-            new HashMap<String, Queue<Request>>();
+    private final InFlightRequests mWaitingRequests = new InFlightRequests();
+
+    /**
+     * Staging area for uncached single-flight requests (see {@link Request#setSingleFlight})
+     * that have an identical request in flight, keyed by {@link Request#getSingleFlightKey()}.
+     */
+    private final InFlightRequests mFlightRequests = new InFlightRequests();
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
-     * any dispatcher.
+     * any dispatcher. Backed by a concurrent map, so it can be iterated without locking.
+     */
+    private final Set<Request> mCurrentRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+
+    /**
+     * The requests in {@link #mCurrentRequests} that were registered with {@link #hold(Request)}
+     * and haven't been dispatched yet.
+     */
+    private final Set<Request> mHeldRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+
+    /**
+     * Index of the requests in {@link #mCurrentRequests} that have a tag, keyed by tag identity.
+     * Each set's monitor guards only its own retirement from the index, so requests with
+     * different tags never contend.
      */
-    private final Set<Request> mCurrentRequests = new HashSet<Request>();
+    private final ConcurrentMap<TagKey, Set<Request>> mTaggedRequests =
+            new ConcurrentHashMap<TagKey, Set<Request>>();
 
-    /** The cache triage queue. */
-    private final PriorityBlockingQueue<Request> mCacheQueue =
-        new PriorityBlockingQueue<Request>();
+    /**
+     * The cache triage queues, one per cache dispatcher. Requests are sharded by cache key, so
+     * requests for the same key are always triaged, in order, by the same dispatcher.
+     */
+    private volatile CacheQueue[] mCacheQueues;
 
-    /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request> mNetworkQueue =
-        new PriorityBlockingQueue<Request>();
+    /**
+     * Held for reading while a request is put on one of {@link #mCacheQueues}, and for writing
+     * while they are replaced, so that no request lands on a queue that has been retired.
+     */
+    private final ReentrantReadWriteLock mCacheQueuesLock = new ReentrantReadWriteLock();
+
+    /**
+     * The queue of requests that are actually going out to the network. Scheduled fairly
+     * across hosts, optionally with a per-host concurrency limit.
+     */
+    private final NetworkQueue mNetworkQueue = new NetworkQueue();
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /** Number of cache dispatcher threads to start. */
+    private static final int DEFAULT_CACHE_THREAD_COUNT = 1;
+
+    /** Default idle time after which an elastic network dispatcher retires. */
+    private static final long DEFAULT_NETWORK_KEEP_ALIVE_MS = 30 * 1000;
+
     /** Cache interface for retrieving and storing respones. */
     private final Cache mCache;
 
@@ -81,11 +119,56 @@ public class RequestQueue {
     /** Response delivery mechanism. */
     private final ResponseDelivery mDelivery;
 
-    /** The network dispatchers. */
-    private NetworkDispatcher[] mDispatchers;
+    /** Number of network dispatchers kept alive regardless of load. */
+    private int mNetworkPoolMinSize;
+
+    /** Upper bound on the number of network dispatchers. */
+    private int mNetworkPoolMaxSize;
+
+    /** Idle time after which a network dispatcher beyond the minimum retires. */
+    private long mNetworkKeepAliveMs = DEFAULT_NETWORK_KEEP_ALIVE_MS;
+
+    /** Queue time that raises a request's effective priority by one level; 0 to not age. */
+    private volatile long mAgingIntervalMs = 0;
+
+    /** Per priority: number of dispatched requests whose queue wait was recorded. */
+    private final AtomicLongArray mQueueWaitCounts =
+            new AtomicLongArray(Request.Priority.values().length);
+
+    /** Per priority: total recorded queue wait in milliseconds. */
+    private final AtomicLongArray mQueueWaitTotalsMs =
+            new AtomicLongArray(Request.Priority.values().length);
+
+    /** Per priority: longest recorded queue wait in milliseconds. */
+    private final AtomicLongArray mQueueWaitMaxMs =
+            new AtomicLongArray(Request.Priority.values().length);
+
+    /** The network dispatchers; null until {@link #start()} is called. */
+    private volatile NetworkDispatcherPool mNetworkDispatchers;
+
+    /** The cache dispatchers; null while stopped. */
+    private CacheDispatcher[] mCacheDispatchers;
 
-    /** The cache dispatcher. */
-    private CacheDispatcher mCacheDispatcher;
+    /** Maximum number of requests waiting for cache triage, across all cache queues. */
+    private int mCacheQueueCapacity = Integer.MAX_VALUE;
+
+    /** What the queues do with a request offered while full. */
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /** Number of threads parsing responses; 0 to parse on the dispatcher threads. */
+    private int mParsePoolSize = 0;
+
+    /** Parses responses for the dispatchers; null while stopped or when parsing inline. */
+    private ParsePool mParsePool;
+
+    /** Executor to dispatch requests on instead of dispatcher threads, or null. */
+    private Executor mDispatchExecutor;
+
+    /** Dispatches requests on {@link #mDispatchExecutor}; null unless started in that mode. */
+    private volatile ExecutorDispatcher mExecutorDispatcher;
+
+    /** Number of requests shed because a queue was full. */
+    private final AtomicLong mRejectedRequests = new AtomicLong();
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -99,8 +182,10 @@ public class RequestQueue {
             ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mNetworkPoolMinSize = threadPoolSize;
+        mNetworkPoolMaxSize = threadPoolSize;
         mDelivery = delivery;
+        mCacheQueues = createCacheQueues(DEFAULT_CACHE_THREAD_COUNT);
     }
 
     /**
@@ -130,31 +215,283 @@ public class RequestQueue {
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        CacheQueue[] cacheQueues = mCacheQueues;
+        if (mDispatchExecutor != null) {
+            mExecutorDispatcher = new ExecutorDispatcher(mDispatchExecutor, cacheQueues,
+                    mNetworkQueue, mCache, mNetwork, mDelivery);
+            mExecutorDispatcher.start();
+            return;
+        }
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        // Create the pool that parses responses off the I/O threads.
+        if (mParsePoolSize > 0) {
+            mParsePool = new ParsePool(mParsePoolSize);
+        }
+
+        // Create a cache dispatcher per cache queue and start them. The first one initializes
+        // the cache; the others wait for it.
+        CountDownLatch cacheInitialized = new CountDownLatch(1);
+        mCacheDispatchers = new CacheDispatcher[cacheQueues.length];
+        for (int i = 0; i < cacheQueues.length; i++) {
+            mCacheDispatchers[i] = new CacheDispatcher(cacheQueues[i], mNetworkQueue, mCache,
+                    mDelivery, cacheInitialized, i == 0);
+            mCacheDispatchers[i].setParseExecutor(mParsePool);
+            mCacheDispatchers[i].start();
         }
+
+        // Create network dispatchers (and corresponding threads) up to the pool size.
+        mNetworkDispatchers = new NetworkDispatcherPool(mNetworkQueue, mNetwork, mCache,
+                mDelivery, mNetworkPoolMinSize, mNetworkPoolMaxSize, mNetworkKeepAliveMs);
+        mNetworkDispatchers.setParseExecutor(mParsePool);
+        mNetworkDispatchers.start();
     }
 
     /**
      * Stops the cache and network dispatchers.
      */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        if (mCacheDispatchers != null) {
+            for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+                cacheDispatcher.quit();
+            }
+            mCacheDispatchers = null;
+        }
+        if (mNetworkDispatchers != null) {
+            mNetworkDispatchers.stop();
+        }
+        if (mExecutorDispatcher != null) {
+            mExecutorDispatcher.quit();
+            mExecutorDispatcher = null;
+        }
+        if (mParsePool != null) {
+            mParsePool.shutdown();
+            mParsePool = null;
+        }
+    }
+
+    /**
+     * Sets the number of threads that parse responses, write them to cache and post them,
+     * so that slow parsing (large JSON, bitmap decoding) doesn't keep the cache and network
+     * dispatchers from their I/O. When the parse threads fall behind, the dispatchers parse
+     * for themselves until they catch up. Not used when dispatching on an executor.
+     *
+     * <p>Off by default. Responses are then parsed and delivered in the order the dispatchers
+     * resolve them; with parse threads, responses for requests with the same cache key may be
+     * delivered out of order. The number of CPU cores is a reasonable size.</p>
+     *
+     * <p>Takes effect the next time {@link #start()} is called.</p>
+     *
+     * @param threads Number of parse threads, or 0 to parse on the dispatcher threads
+     */
+    public void setParsePoolSize(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative");
+        }
+        mParsePoolSize = threads;
+    }
+
+    /**
+     * Sets the number of cache dispatcher threads, which read the cache and parse cache hits.
+     * Requests are spread over them by cache key, so requests with the same cache key are
+     * still triaged in the order they were added, and delivered in that order unless a parse
+     * pool is set with {@link #setParsePoolSize(int)}. One by default.
+     *
+     * <p>Must be called while the queue is stopped. Requests already added are moved to the
+     * dispatcher their cache key now maps to; if the cache queue is bounded and the new shards
+     * can't hold them all, the overflow policy applies as if they were being added. Waits for
+     * any {@link #add(Request)} blocked on a full cache queue.</p>
+     *
+     * @param count Number of cache dispatchers
+     */
+    public void setCacheDispatcherCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        if (mCacheDispatchers != null || mExecutorDispatcher != null) {
+            throw new IllegalStateException("Cannot change cache dispatcher count while started");
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].quit();
+        mCacheQueuesLock.writeLock().lock();
+        try {
+            CacheQueue[] oldQueues = mCacheQueues;
+            mCacheQueues = createCacheQueues(count);
+            List<Request> queued = new ArrayList<Request>();
+            for (CacheQueue queue : oldQueues) {
+                queue.drainTo(queued);
             }
+            // Nothing takes from a stopped queue, so never wait for room; a request that
+            // doesn't fit is rejected by the queue's overflow policy.
+            for (Request request : queued) {
+                cacheQueueFor(request).offer(request);
+            }
+        } finally {
+            mCacheQueuesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs cache triage and network requests as tasks on the given executor, instead of on a
+     * cache dispatcher thread and a pool of network dispatcher threads. Each queued request
+     * gets one task, which takes the highest priority request waiting at the time it runs, so
+     * priorities and per-host limits still apply; concurrency is bounded only by the executor.
+     *
+     * <p>Meant for a thread-per-task executor of lightweight threads (for example virtual
+     * threads on a JVM that has them), where blocking network calls need no pool of platform
+     * threads. The executor is not shut down by {@link #stop()}. Takes effect the next time
+     * {@link #start()} is called; pass null to go back to dispatcher threads.</p>
+     *
+     * @param executor Executor to run dispatch tasks on, or null
+     */
+    public void setDispatchExecutor(Executor executor) {
+        mDispatchExecutor = executor;
+    }
+
+    /**
+     * Lets the number of network dispatchers follow the load, instead of the fixed pool size
+     * passed to the constructor. Dispatchers are added, up to <code>maxPoolSize</code>, while
+     * requests are waiting for the network and no dispatcher is idle; dispatchers beyond
+     * <code>minPoolSize</code> stop after being idle for <code>keepAliveMs</code>.
+     *
+     * <p>Takes effect the next time {@link #start()} is called.</p>
+     *
+     * @param minPoolSize Number of dispatchers kept alive regardless of load; may be 0
+     * @param maxPoolSize Upper bound on the number of dispatchers
+     * @param keepAliveMs Idle time after which a dispatcher beyond minPoolSize stops
+     */
+    public void setElasticNetworkPool(int minPoolSize, int maxPoolSize, long keepAliveMs) {
+        if (minPoolSize < 0 || maxPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException(
+                    "Invalid pool bounds " + minPoolSize + ".." + maxPoolSize);
+        }
+        mNetworkPoolMinSize = minPoolSize;
+        mNetworkPoolMaxSize = maxPoolSize;
+        mNetworkKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Limits the number of requests to the same host (see {@link Request#getHost()}) that are
+     * processed by the network dispatchers at once, so that a slow host can't occupy every
+     * dispatcher. Further requests to that host wait while requests to other hosts proceed.
+     * Unlimited by default.
+     *
+     * @param maxRequestsPerHost Maximum number of concurrent network requests per host
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        mNetworkQueue.setMaxPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Bounds the cache triage queue and the network queue, so that requests can't pile up
+     * without limit when the network is down or slow. Requests staged behind a duplicate (see
+     * {@link Request#getCacheKey()}) and requests being processed don't count. Unbounded by
+     * default.
+     *
+     * <p>Requests shed by the overflow policy are delivered a {@link RequestRejectedError}.
+     * A request that already had an intermediate response delivered from cache and is shed on
+     * its way to be refreshed just finishes, without an error.</p>
+     *
+     * @param cacheQueueCapacity Maximum number of requests waiting for cache triage; divided
+     *        evenly, rounding up, among the cache dispatchers' queues
+     * @param networkQueueCapacity Maximum number of requests waiting for the network
+     * @param policy What to do with a request offered to a full queue
+     */
+    public void setQueueCapacity(int cacheQueueCapacity, int networkQueueCapacity,
+            OverflowPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        if (cacheQueueCapacity < 1) {
+            throw new IllegalArgumentException("cacheQueueCapacity must be at least 1");
+        }
+        mCacheQueueCapacity = cacheQueueCapacity;
+        mOverflowPolicy = policy;
+        for (CacheQueue cacheQueue : mCacheQueues) {
+            applyCapacity(cacheQueue, mCacheQueues.length);
+        }
+        mNetworkQueue.setCapacity(networkQueueCapacity, policy);
+    }
+
+    private CacheQueue[] createCacheQueues(int count) {
+        CacheQueue[] queues = new CacheQueue[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new CacheQueue();
+            applyCapacity(queues[i], count);
+        }
+        return queues;
+    }
+
+    private void applyCapacity(CacheQueue cacheQueue, int shards) {
+        if (mCacheQueueCapacity != Integer.MAX_VALUE) {
+            cacheQueue.setCapacity((mCacheQueueCapacity + shards - 1) / shards, mOverflowPolicy);
+        }
+    }
+
+    /**
+     * Returns the cache queue for the request's cache key.
+     */
+    private CacheQueue cacheQueueFor(Request request) {
+        CacheQueue[] queues = mCacheQueues;
+        if (queues.length == 1) {
+            return queues[0];
+        }
+        String cacheKey = request.getCacheKey();
+        int h = cacheKey == null ? 0 : cacheKey.hashCode();
+        h ^= (h >>> 16);
+        return queues[(h & 0x7fffffff) % queues.length];
+    }
+
+    /**
+     * Lets the effective priority of queued requests rise with the time they have been
+     * waiting, so that a steady stream of higher priority requests can't starve lower priority
+     * ones. Each <code>agingIntervalMs</code> spent queued raises a request by one
+     * {@link Request.Priority} level, up to {@link Request.Priority#IMMEDIATE}; a request
+     * therefore waits at most about three intervals behind requests added after it.
+     *
+     * <p>Must be called while the queue is stopped and holds no requests, since requests
+     * queued under different intervals can't be ordered consistently. Queue waits per priority
+     * are reported by {@link #getStats()} either way.</p>
+     *
+     * @param agingIntervalMs Queue time per priority level, or 0 to order strictly by priority
+     */
+    public void setPriorityAging(long agingIntervalMs) {
+        if (agingIntervalMs < 0) {
+            throw new IllegalArgumentException("agingIntervalMs must not be negative");
+        }
+        if (mCacheDispatchers != null || mExecutorDispatcher != null) {
+            throw new IllegalStateException("Cannot change priority aging while started");
+        }
+        if (!mCurrentRequests.isEmpty()) {
+            throw new IllegalStateException("Cannot change priority aging with requests queued");
+        }
+        mAgingIntervalMs = agingIntervalMs;
+    }
+
+    /**
+     * Returns a snapshot of this queue's dispatcher pool and queue depths.
+     */
+    public Stats getStats() {
+        NetworkDispatcherPool networkDispatchers = mNetworkDispatchers;
+        int poolSize = 0;
+        int idleCount = 0;
+        if (networkDispatchers != null) {
+            poolSize = networkDispatchers.getSize();
+            idleCount = networkDispatchers.getIdleCount();
+        }
+        int levels = Request.Priority.values().length;
+        long[] waitCounts = new long[levels];
+        long[] waitTotalsMs = new long[levels];
+        long[] waitMaxMs = new long[levels];
+        for (int i = 0; i < levels; i++) {
+            waitCounts[i] = mQueueWaitCounts.get(i);
+            waitTotalsMs[i] = mQueueWaitTotalsMs.get(i);
+            waitMaxMs[i] = mQueueWaitMaxMs.get(i);
         }
+        int cacheQueueDepth = 0;
+        for (CacheQueue cacheQueue : mCacheQueues) {
+            cacheQueueDepth += cacheQueue.size();
+        }
+        return new Stats(poolSize, idleCount, cacheQueueDepth, mNetworkQueue.size(),
+                mCurrentRequests.size(), mRejectedRequests.get(), waitCounts, waitTotalsMs,
+                waitMaxMs);
     }
 
     /**
@@ -184,11 +521,10 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        // Iteration is weakly consistent; requests added concurrently may or may not be seen.
+        for (Request<?> request : mCurrentRequests) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
@@ -197,61 +533,277 @@ public class RequestQueue {
      * Cancels all requests in this queue with the given tag. Tag must be non-null
      * and equality is by identity.
      */
-    public void cancelAll(final Object tag) {
+    public void cancelAll(Object tag) {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
+        Set<Request> taggedRequests = mTaggedRequests.get(new TagKey(tag));
+        if (taggedRequests == null) {
+            return;
+        }
+        for (Request<?> request : taggedRequests) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Changes the priority of a request that has been added to this queue, e.g. to demote
+     * images that scrolled off screen and promote those that scrolled back on. A request
+     * waiting for cache triage or for the network is moved to its new place in that queue in
+     * O(log n); a request that is already being processed just keeps the new priority.
+     *
+     * @param request A request added to this queue
+     * @param priority The new priority
+     */
+    public void setPriority(final Request request, final Request.Priority priority) {
+        final Runnable priorityChange = new Runnable() {
             @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+            public void run() {
+                request.setQueuedPriority(priority);
             }
-        });
+        };
+        // Change the priority holding both queues' locks, always the cache queue's first, so
+        // that no dispatcher can insert the request into either queue meanwhile. Whichever
+        // queue holds the request moves it to where the new priority belongs.
+        mCacheQueuesLock.readLock().lock();
+        try {
+            cacheQueueFor(request).changeKeyOrSet(request, new Runnable() {
+                @Override
+                public void run() {
+                    mNetworkQueue.changeKeyOrSet(request, priorityChange);
+                }
+            });
+        } finally {
+            mCacheQueuesLock.readLock().unlock();
+        }
     }
 
     /**
-     * Adds a Request to the dispatch queue.
+     * Adds a Request to the dispatch queue. If the queue is bounded with
+     * {@link OverflowPolicy#BLOCK} and full, waits for room.
      * @param request The request to service
      * @return The passed-in request
      */
     public Request add(Request request) {
-        // Tag the request as belonging to this queue and add it to the set of current requests.
-        request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
-
-        // Process requests in the order they are added.
-        request.setSequence(getSequenceNumber());
+        registerUnlessHeld(request);
         request.addMarker("add-to-queue");
 
-        // If the request is uncacheable, skip the cache queue and go straight to the network.
+        // If the request is uncacheable, skip the cache queue and go straight to the network,
+        // unless an identical request already in flight will do.
         if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
+            String flightKey = request.isSingleFlight() ? request.getSingleFlightKey() : null;
+            if (flightKey != null) {
+                joinFlight(request, flightKey, true);
+            } else {
+                enqueue(mNetworkQueue, request);
+            }
             return request;
         }
 
         // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                Queue<Request> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request>();
-                }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
-                if (VolleyLog.sDebug) {
-                    VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
-                }
+        String cacheKey = request.getCacheKey();
+        if (request.isCacheKeyInFlight()) {
+            // Held, and marked in flight when it was.
+            enqueueForCache(request, true);
+        } else if (mWaitingRequests.stageIfInFlight(cacheKey, request)) {
+            // There is already a request in flight. Queue up.
+            if (VolleyLog.sDebug) {
+                VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
+            }
+        } else {
+            request.setCacheKeyInFlight(true);
+            enqueueForCache(request, true);
+        }
+        return request;
+    }
+
+    /**
+     * Adds a Request whose network response has already been obtained by other means, e.g. as
+     * one part of a {@link com.android.volley.toolbox.BatchRequest}. The request skips cache
+     * triage and the network: the response is parsed, written to cache if the request should be
+     * cached, and delivered on a network dispatcher just as if it had been fetched.
+     *
+     * <p>This may be called on the delivery thread, so it never waits for room: if the network
+     * queue is full, the request is rejected.</p>
+     *
+     * @param request The request to service
+     * @param response A successful network response for the request
+     * @return The passed-in request
+     */
+    public Request addWithResponse(Request request, NetworkResponse response) {
+        registerUnlessHeld(request);
+        request.setPrimedResponse(response);
+        request.addMarker("add-to-queue-with-response");
+        mNetworkQueue.offer(request);
+        return request;
+    }
+
+    /**
+     * Adds a Request that is already known to have failed, e.g. as one part of a failed
+     * {@link com.android.volley.toolbox.BatchRequest}. The error is delivered to the request
+     * as if a dispatcher had raised it, and the request then finishes; a canceled request just
+     * finishes.
+     *
+     * @param request The request to service
+     * @param error The error to deliver
+     * @return The passed-in request
+     */
+    public Request addWithError(Request request, VolleyError error) {
+        registerUnlessHeld(request);
+        request.addMarker("add-to-queue-with-error");
+        mDelivery.postError(request, error);
+        return request;
+    }
+
+    /**
+     * Registers a Request with this queue without dispatching it yet, e.g. while it waits to
+     * be sent as one part of a {@link com.android.volley.toolbox.BatchRequest}. A held request
+     * is one of this queue's current requests, so {@link #cancelAll(Object)} and
+     * {@link #cancelAll(RequestFilter)} cancel it. Dispatch it later by passing it to
+     * {@link #add(Request)}, {@link #addWithResponse(Request, NetworkResponse)} or
+     * {@link #addWithError(Request, VolleyError)}.
+     *
+     * <p>A cacheable request is marked in flight for its cache key while it is held, as if it
+     * had been added, so identical requests added meanwhile wait for it. If an identical
+     * request is already in flight, the request is not held but staged behind that one, and
+     * is then looked up in the cache once it finishes.</p>
+     *
+     * @param request The request to hold
+     * @return true if the request is held, false if it was staged behind an identical request
+     */
+    public boolean hold(Request request) {
+        register(request);
+        if (request.shouldCache()
+                && mWaitingRequests.stageIfInFlight(request.getCacheKey(), request)) {
+            request.addMarker("add-to-queue");
+            if (VolleyLog.sDebug) {
+                VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.",
+                        request.getCacheKey());
+            }
+            return false;
+        }
+        request.setCacheKeyInFlight(request.shouldCache());
+        mHeldRequests.add(request);
+        request.addMarker("add-to-queue-held");
+        return true;
+    }
+
+    /**
+     * Sends an uncached single-flight request to the network as the leader of its flight, or
+     * stages it behind the identical request that already leads.
+     *
+     * @param mayWait Whether to wait for room if the network queue blocks when full
+     */
+    private void joinFlight(Request request, String flightKey, boolean mayWait) {
+        if (mFlightRequests.stageIfInFlight(flightKey, request)) {
+            if (VolleyLog.sDebug) {
+                VolleyLog.v("Request for %s is in flight, putting on hold.", flightKey);
+            }
+            return;
+        }
+        request.setFlightKey(flightKey);
+        if (mayWait) {
+            enqueue(mNetworkQueue, request);
+        } else {
+            mNetworkQueue.offer(request);
+        }
+    }
+
+    /**
+     * Hands the outcome of a flight leader to the requests staged behind it.
+     */
+    private void releaseFlight(Request leader, String flightKey) {
+        Queue<Request> followers = mFlightRequests.release(flightKey);
+        if (followers == null) {
+            return;
+        }
+        NetworkResponse response = leader.getFlightResponse();
+        VolleyError error = leader.getFlightError();
+        if (VolleyLog.sDebug) {
+            VolleyLog.v("Releasing %d waiting requests for %s.", followers.size(), flightKey);
+        }
+        for (Request follower : followers) {
+            if (response != null) {
+                // Parse and deliver the shared response on a network dispatcher.
+                follower.setPrimedResponse(response);
+                follower.addMarker("single-flight-response");
+                mNetworkQueue.offer(follower);
+            } else if (error != null) {
+                follower.addMarker("single-flight-error");
+                mDelivery.postError(follower, follower.parseNetworkError(error));
             } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                // The leader never got to the network, e.g. it was canceled; the next in
+                // line leads instead.
+                joinFlight(follower, flightKey, false);
             }
-            return request;
+        }
+    }
+
+    /**
+     * Tags a request as belonging to this queue and adds it to the set of current requests.
+     */
+    private void register(Request request) {
+        request.setRequestQueue(this);
+        mCurrentRequests.add(request);
+        indexTag(request, request.getTag());
+
+        // Process requests in the order they are added.
+        request.setSequence(getSequenceNumber());
+        request.setQueuedAt(SystemClock.elapsedRealtime(), mAgingIntervalMs);
+    }
+
+    /**
+     * Registers a request that is being dispatched, unless it was registered when it was held.
+     */
+    private void registerUnlessHeld(Request request) {
+        if (!mHeldRequests.remove(request)) {
+            register(request);
+        }
+    }
+
+    /**
+     * Puts a newly added request on a queue, waiting for room if the queue blocks when full.
+     */
+    private void enqueue(BlockingQueue<Request> queue, Request request) {
+        try {
+            queue.put(request);
+        } catch (InterruptedException e) {
+            // Give up on the request rather than swallow the interrupt.
+            Thread.currentThread().interrupt();
+            rejectRequest(request);
+        }
+    }
+
+    /**
+     * Puts a request on the cache queue for its cache key.
+     *
+     * @param mayWait Whether to wait for room if the cache queue blocks when full
+     */
+    private void enqueueForCache(Request request, boolean mayWait) {
+        mCacheQueuesLock.readLock().lock();
+        try {
+            if (mayWait) {
+                enqueue(cacheQueueFor(request), request);
+            } else {
+                cacheQueueFor(request).offer(request);
+            }
+        } finally {
+            mCacheQueuesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fails a request that was shed from a full queue.
+     */
+    private void rejectRequest(Request request) {
+        mRejectedRequests.incrementAndGet();
+        request.addMarker("queue-full-rejected");
+        if (request.hasHadResponseDelivered()) {
+            // A soft-expired cache hit on its way to be refreshed; the caller already has a
+            // response, so just skip the refresh.
+            request.finish("queue-full-refresh-dropped");
+        } else {
+            mDelivery.postError(request, new RequestRejectedError());
         }
     }
 
@@ -259,29 +811,270 @@ public class RequestQueue {
      * Called from {@link Request#finish(String)}, indicating that processing of the given request
      * has finished.
      *
-     * <p>Releases waiting requests for <code>request.getCacheKey()</code> if
-     *      <code>request.shouldCache()</code>.</p>
+     * <p>Releases waiting requests for <code>request.getCacheKey()</code> if the request
+     *      held the in flight marker for it, or the identical requests waiting on it if it
+     *      leads a single flight.</p>
      */
     void finish(Request request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
-        }
-
-        if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
-                    if (VolleyLog.sDebug) {
-                        VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
-                                waitingRequests.size(), cacheKey);
+        mCurrentRequests.remove(request);
+        unindexTag(request, request.getTag());
+        recordQueueWait(request);
+
+        String flightKey = request.getFlightKey();
+        if (flightKey != null) {
+            releaseFlight(request, flightKey);
+        } else if (request.isCacheKeyInFlight()) {
+            // Requests released from the stage never took the marker, and must not clear it
+            // for whichever request holds it now.
+            request.setCacheKeyInFlight(false);
+            String cacheKey = request.getCacheKey();
+            Queue<Request> waitingRequests = mWaitingRequests.release(cacheKey);
+            if (waitingRequests != null) {
+                if (VolleyLog.sDebug) {
+                    VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
+                            waitingRequests.size(), cacheKey);
+                }
+                // Process all queued up requests. They won't be considered as in flight, but
+                // that's not a problem as the cache has been primed by 'request'. Hand them the
+                // entry 'request' was resolved with, so they needn't read it back from the
+                // cache. Never wait for room here; this may run on the delivery thread.
+                Cache.Entry entry = request.getResolvedCacheEntry();
+                for (Request waitingRequest : waitingRequests) {
+                    if (entry != null) {
+                        waitingRequest.setPrimedCacheEntry(entry);
                     }
-                    // Process all queued up requests. They won't be considered as in flight, but
-                    // that's not a problem as the cache has been primed by 'request'.
-                    mCacheQueue.addAll(waitingRequests);
+                    enqueueForCache(waitingRequest, false);
                 }
             }
         }
     }
+
+    private void recordQueueWait(Request request) {
+        long waitMs = request.getQueueWaitMs();
+        if (waitMs < 0) {
+            return;
+        }
+        int level = request.getPriority().ordinal();
+        mQueueWaitCounts.incrementAndGet(level);
+        mQueueWaitTotalsMs.addAndGet(level, waitMs);
+        long max;
+        do {
+            max = mQueueWaitMaxMs.get(level);
+        } while (waitMs > max && !mQueueWaitMaxMs.compareAndSet(level, max, waitMs));
+    }
+
+    /**
+     * Called from {@link Request#setTag(Object)} when the tag of a request that belongs to this
+     * queue changes, so that the tag index stays in sync.
+     */
+    void onTagChanged(Request request, Object oldTag) {
+        if (!mCurrentRequests.contains(request)) {
+            return;
+        }
+        unindexTag(request, oldTag);
+        indexTag(request, request.getTag());
+    }
+
+    private void indexTag(Request request, Object tag) {
+        if (tag == null) {
+            return;
+        }
+        TagKey key = new TagKey(tag);
+        while (true) {
+            Set<Request> taggedRequests = mTaggedRequests.get(key);
+            if (taggedRequests == null) {
+                Set<Request> newSet =
+                        Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+                taggedRequests = mTaggedRequests.putIfAbsent(key, newSet);
+                if (taggedRequests == null) {
+                    taggedRequests = newSet;
+                }
+            }
+            synchronized (taggedRequests) {
+                // The set may have been emptied and retired since we looked it up.
+                if (mTaggedRequests.get(key) == taggedRequests) {
+                    taggedRequests.add(request);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void unindexTag(Request request, Object tag) {
+        if (tag == null) {
+            return;
+        }
+        TagKey key = new TagKey(tag);
+        Set<Request> taggedRequests = mTaggedRequests.get(key);
+        if (taggedRequests == null) {
+            return;
+        }
+        synchronized (taggedRequests) {
+            taggedRequests.remove(request);
+            if (taggedRequests.isEmpty()) {
+                mTaggedRequests.remove(key, taggedRequests);
+            }
+        }
+    }
+
+    /**
+     * A point-in-time view of the load on a {@link RequestQueue}; see {@link #getStats()}.
+     */
+    public static class Stats {
+        /** Number of live network dispatcher threads. */
+        public final int networkPoolSize;
+
+        /** Number of network dispatcher threads waiting for a request. */
+        public final int idleNetworkDispatchers;
+
+        /** Number of requests waiting for cache triage. */
+        public final int cacheQueueDepth;
+
+        /** Number of requests waiting for a network dispatcher. */
+        public final int networkQueueDepth;
+
+        /** Number of requests added to the queue and not yet finished. */
+        public final int inFlightRequests;
+
+        /** Number of requests shed because a queue was full, since the queue was created. */
+        public final long rejectedRequests;
+
+        private final long[] mQueueWaitCounts;
+        private final long[] mQueueWaitTotalsMs;
+        private final long[] mQueueWaitMaxMs;
+
+        Stats(int networkPoolSize, int idleNetworkDispatchers, int cacheQueueDepth,
+                int networkQueueDepth, int inFlightRequests, long rejectedRequests,
+                long[] queueWaitCounts, long[] queueWaitTotalsMs, long[] queueWaitMaxMs) {
+            this.networkPoolSize = networkPoolSize;
+            this.idleNetworkDispatchers = idleNetworkDispatchers;
+            this.cacheQueueDepth = cacheQueueDepth;
+            this.networkQueueDepth = networkQueueDepth;
+            this.inFlightRequests = inFlightRequests;
+            this.rejectedRequests = rejectedRequests;
+            mQueueWaitCounts = queueWaitCounts;
+            mQueueWaitTotalsMs = queueWaitTotalsMs;
+            mQueueWaitMaxMs = queueWaitMaxMs;
+        }
+
+        /**
+         * Returns the number of finished requests of the given priority whose queue wait
+         * (see {@link Request#getQueueWaitMs()}) has been recorded.
+         */
+        public long getQueueWaitCount(Request.Priority priority) {
+            return mQueueWaitCounts[priority.ordinal()];
+        }
+
+        /**
+         * Returns the mean queue wait of finished requests of the given priority, in
+         * milliseconds, or 0 if there were none.
+         */
+        public long getMeanQueueWaitMs(Request.Priority priority) {
+            long count = mQueueWaitCounts[priority.ordinal()];
+            return count == 0 ? 0 : mQueueWaitTotalsMs[priority.ordinal()] / count;
+        }
+
+        /**
+         * Returns the longest queue wait of finished requests of the given priority, in
+         * milliseconds.
+         */
+        public long getMaxQueueWaitMs(Request.Priority priority) {
+            return mQueueWaitMaxMs[priority.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("networkPool=").append(networkPoolSize)
+                    .append(" (idle ").append(idleNetworkDispatchers)
+                    .append("), cacheQueue=").append(cacheQueueDepth)
+                    .append(", networkQueue=").append(networkQueueDepth)
+                    .append(", inFlight=").append(inFlightRequests)
+                    .append(", rejected=").append(rejectedRequests);
+            for (Request.Priority priority : Request.Priority.values()) {
+                sb.append(", ").append(priority).append(" wait mean/max=")
+                        .append(getMeanQueueWaitMs(priority)).append('/')
+                        .append(getMaxQueueWaitMs(priority)).append("ms");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The cache queue; submits a task per queued request when dispatching on an executor.
+     */
+    private class CacheQueue extends IndexedPriorityBlockingQueue<Request> {
+        @Override
+        void onQueued(Request request) {
+            ExecutorDispatcher executorDispatcher = mExecutorDispatcher;
+            if (executorDispatcher != null) {
+                executorDispatcher.onCacheRequestQueued(this);
+            }
+        }
+
+        @Override
+        void onRejected(Request request) {
+            rejectRequest(request);
+        }
+    }
+
+    /**
+     * The network queue; lets the dispatcher pool grow as requests are queued, or submits a
+     * task per queued request when dispatching on an executor.
+     */
+    private class NetworkQueue extends PerHostBlockingQueue {
+        @Override
+        void onQueued(Request request) {
+            onRequestAvailable();
+        }
+
+        @Override
+        void onRejected(Request request) {
+            rejectRequest(request);
+        }
+
+        @Override
+        void release(Request request) {
+            super.release(request);
+            ExecutorDispatcher executorDispatcher = mExecutorDispatcher;
+            if (executorDispatcher != null && size() > 0) {
+                // A request held back by the per-host limit may be takeable now.
+                executorDispatcher.onNetworkRequestQueued();
+            }
+        }
+
+        private void onRequestAvailable() {
+            ExecutorDispatcher executorDispatcher = mExecutorDispatcher;
+            if (executorDispatcher != null) {
+                executorDispatcher.onNetworkRequestQueued();
+                return;
+            }
+            NetworkDispatcherPool networkDispatchers = mNetworkDispatchers;
+            if (networkDispatchers != null) {
+                networkDispatchers.onRequestQueued();
+            }
+        }
+    }
+
+    /**
+     * Wraps a request tag so that it is hashed and compared by identity.
+     */
+    private static class TagKey {
+        private final Object mTag;
+
+        public TagKey(Object tag) {
+            mTag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof TagKey) && ((TagKey) o).mTag == mTag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mTag);
+        }
+    }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Indicates that the request was shed by a full {@link RequestQueue} without being performed.
+ *
+ * @see RequestQueue#setQueueCapacity(int, int, OverflowPolicy)
+ */
+@SuppressWarnings("serial")
+public class RequestRejectedError extends VolleyError {
+    public RequestRejectedError() {
+        super();
+        errorCode = ErrorCode.REQUEST_REJECTED_ERROR;
+    }
+
+    public RequestRejectedError(String exceptionMessage) {
+        super(exceptionMessage);
+        errorCode = ErrorCode.REQUEST_REJECTED_ERROR;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} that can hand out entries without reading their data into memory, for
+ * requests that parse from a stream (see {@link Request#acceptsStreamingResponse()}).
+ */
+public interface StreamingCache extends Cache {
+    /**
+     * Retrieves an entry from the cache without reading its data into memory. The entry's
+     * data may be left null and read through {@link Entry#source} instead.
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss
+     */
+    public Entry getStreaming(String key);
+
+    /**
+     * Adds or replaces an entry to the cache. Unlike a plain {@link Cache}, this may be handed
+     * an entry this cache returned from {@link #getStreaming(String)}, e.g. refreshed by a 304,
+     * in which case {@link Entry#data} is null and the data is read from {@link Entry#source}.
+     * The source may be the stored data of the same key.
+     * @param key Cache key
+     * @param entry Data to store and metadata for cache coherency, TTL, etc.
+     */
+    @Override
+    public void put(String key, Entry entry);
+}
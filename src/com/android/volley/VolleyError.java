@@ -34,6 +34,7 @@ public class VolleyError extends Exception {
         public static final int PARSE_ERROR = -5;
         public static final int BAD_REQUEST_ERROR = -6;
         public static final int AUTH_FAILURE_ERROR = -7;
+        public static final int REQUEST_REJECTED_ERROR = -8;
 
     }
 
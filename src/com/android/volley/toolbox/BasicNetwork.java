@@ -87,8 +87,13 @@ public class BasicNetwork implements Network {
                 responseHeaders = convertHeaders(httpResponse.getAllHeaders());
                 // Handle cache validation.
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                    Cache.Entry entry = request.getCacheEntry();
+                    if (entry.data == null) {
+                        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED,
+                                entry.source, responseHeaders, true);
+                    }
                     return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED,
-                            request.getCacheEntry().data, responseHeaders, true);
+                            entry.data, responseHeaders, true);
                 }
 
                 responseContents = entityToBytes(httpResponse.getEntity());
@@ -150,7 +155,7 @@ public class BasicNetwork implements Network {
 
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, or the request's deadline has passed, a timeout exception is thrown.
      * @param request The request to use.
      */
     private static void attemptRetryOnException(String logPrefix, Request<?> request,
@@ -158,6 +163,11 @@ public class BasicNetwork implements Network {
         RetryPolicy retryPolicy = request.getRetryPolicy();
         int oldTimeout = request.getTimeoutMs();
 
+        if (request.isPastDeadline()) {
+            request.addMarker(
+                    String.format("%s-deadline-giveup [timeout=%s]", logPrefix, oldTimeout));
+            throw exception;
+        }
         try {
             retryPolicy.retry(exception);
         } catch (VolleyError e) {
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.BadRequestError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpStatus;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request that sends several requests to a batch endpoint in one round trip, and splits the
+ * reply back into one response per request. See {@link RequestBatcher} for collecting requests
+ * into batches.
+ *
+ * <p>The parts are expected to be held by the {@link RequestQueue}, see
+ * {@link RequestQueue#hold(Request)}, and are handed back to it once the batch is done: each
+ * successful part with {@link RequestQueue#addWithResponse(Request, NetworkResponse)}, so the
+ * part's own request parses it, writes it to cache under its own cache key and delivers it as
+ * usual, and a failed part, or every part of a failed batch, with
+ * {@link RequestQueue#addWithError(Request, VolleyError)}. Canceling the batch cancels its
+ * parts.</p>
+ *
+ * <p>By default the batch is posted as JSON:</p>
+ * <pre>
+ * {"requests": [{"method": "GET", "url": "...", "headers": {...}}, ...]}
+ * </pre>
+ * <p>and the endpoint is expected to answer, in the same order:</p>
+ * <pre>
+ * {"responses": [{"status": 200, "headers": {...}, "body": "..."}, ...]}
+ * </pre>
+ * <p>Override {@link #encodeBatch(List)} and {@link #decodeBatch(NetworkResponse)} to speak
+ * another format.</p>
+ */
+public class BatchRequest extends Request<List<NetworkResponse>> {
+    /** Charset for request and response bodies. */
+    private static final String PROTOCOL_CHARSET = "utf-8";
+
+    /** Content type for request. */
+    private static final String PROTOCOL_CONTENT_TYPE =
+        String.format("application/json; charset=%s", PROTOCOL_CHARSET);
+
+    private final RequestQueue mRequestQueue;
+    private final List<Request<?>> mParts;
+
+    /** Whether the parts have been handed back to the queue. */
+    private final AtomicBoolean mPartsReleased = new AtomicBoolean();
+
+    /**
+     * Creates a new batch.
+     * @param requestQueue Queue holding the parts, to hand their outcomes to
+     * @param batchUrl URL of the batch endpoint
+     * @param parts Requests to send in this batch
+     */
+    public BatchRequest(RequestQueue requestQueue, String batchUrl, List<Request<?>> parts) {
+        super(Method.POST, batchUrl, highestPriority(parts), null, null);
+        mRequestQueue = requestQueue;
+        mParts = new ArrayList<Request<?>>(parts);
+        // The parts are cached individually; the batch itself never is.
+        setShouldCache(false);
+    }
+
+    /**
+     * Returns the requests in this batch.
+     */
+    public List<Request<?>> getParts() {
+        return Collections.unmodifiableList(mParts);
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return PROTOCOL_CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return encodeBatch(mParts);
+    }
+
+    /**
+     * Encodes the parts of this batch into the body posted to the batch endpoint.
+     */
+    protected byte[] encodeBatch(List<Request<?>> parts) throws AuthFailureError {
+        try {
+            JSONArray requests = new JSONArray();
+            for (Request<?> part : parts) {
+                JSONObject request = new JSONObject();
+                request.put("method", methodName(part.getMethod()));
+                request.put("url", part.getUrl());
+                JSONObject headers = new JSONObject();
+                for (Map.Entry<String, String> header : part.getHeaders().entrySet()) {
+                    headers.put(header.getKey(), header.getValue());
+                }
+                request.put("headers", headers);
+                requests.put(request);
+            }
+            JSONObject batch = new JSONObject();
+            batch.put("requests", requests);
+            return batch.toString().getBytes(PROTOCOL_CHARSET);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Splits the batch endpoint's reply into one network response per part, in the order of
+     * the parts. Called on a worker thread.
+     */
+    protected List<NetworkResponse> decodeBatch(NetworkResponse response) throws ParseError {
+        try {
+            String json =
+                new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+            JSONArray responses = new JSONObject(json).getJSONArray("responses");
+            List<NetworkResponse> parts = new ArrayList<NetworkResponse>(responses.length());
+            for (int i = 0; i < responses.length(); i++) {
+                JSONObject part = responses.getJSONObject(i);
+                Map<String, String> headers = new HashMap<String, String>();
+                JSONObject partHeaders = part.optJSONObject("headers");
+                if (partHeaders != null) {
+                    Iterator<?> names = partHeaders.keys();
+                    while (names.hasNext()) {
+                        String name = (String) names.next();
+                        headers.put(name, partHeaders.getString(name));
+                    }
+                }
+                byte[] body = part.optString("body", "").getBytes(PROTOCOL_CHARSET);
+                parts.add(new NetworkResponse(part.getInt("status"), body, headers, false));
+            }
+            return parts;
+        } catch (UnsupportedEncodingException e) {
+            throw new ParseError(e);
+        } catch (JSONException je) {
+            throw new ParseError(je);
+        }
+    }
+
+    @Override
+    protected Response<List<NetworkResponse>> parseNetworkResponse(NetworkResponse response) {
+        try {
+            List<NetworkResponse> parts = decodeBatch(response);
+            if (parts.size() != mParts.size()) {
+                return Response.error(new ParseError(new IllegalStateException(
+                        "Expected " + mParts.size() + " responses, got " + parts.size())));
+            }
+            return Response.success(parts, null);
+        } catch (ParseError e) {
+            return Response.error(e);
+        }
+    }
+
+    @Override
+    protected void deliverResponse(List<NetworkResponse> responses) {
+        if (!mPartsReleased.compareAndSet(false, true)) {
+            return;
+        }
+        // Canceled parts go back to the queue too, which finishes them without delivering.
+        for (int i = 0; i < mParts.size(); i++) {
+            Request<?> part = mParts.get(i);
+            NetworkResponse response = responses.get(i);
+            if (response.statusCode == HttpStatus.SC_OK
+                    || response.statusCode == HttpStatus.SC_NO_CONTENT) {
+                mRequestQueue.addWithResponse(part, response);
+            } else {
+                mRequestQueue.addWithError(part, errorFor(response));
+            }
+        }
+    }
+
+    @Override
+    public void deliverError(VolleyError error) {
+        if (!mPartsReleased.compareAndSet(false, true)) {
+            return;
+        }
+        for (Request<?> part : mParts) {
+            mRequestQueue.addWithError(part, error);
+        }
+    }
+
+    /**
+     * Cancels this batch and its parts. Parts not yet handed back to the queue are finished
+     * without delivering anything.
+     */
+    @Override
+    public void cancel() {
+        super.cancel();
+        if (!mPartsReleased.compareAndSet(false, true)) {
+            return;
+        }
+        VolleyError error = new VolleyError("Batch canceled");
+        for (Request<?> part : mParts) {
+            part.cancel();
+            mRequestQueue.addWithError(part, error);
+        }
+    }
+
+    /**
+     * Maps a failed part to the error {@link BasicNetwork} would have raised for it.
+     */
+    private static VolleyError errorFor(NetworkResponse response) {
+        switch (response.statusCode) {
+            case HttpStatus.SC_UNAUTHORIZED:
+            case HttpStatus.SC_FORBIDDEN:
+                return new AuthFailureError(response);
+            case HttpStatus.SC_BAD_REQUEST:
+                return new BadRequestError(response);
+            default:
+                return new ServerError(response);
+        }
+    }
+
+    private static Priority highestPriority(List<Request<?>> parts) {
+        Priority highest = Priority.LOW;
+        for (Request<?> part : parts) {
+            if (part.getPriority().compareTo(highest) > 0) {
+                highest = part.getPriority();
+            }
+        }
+        return highest;
+    }
+
+    private static String methodName(int method) {
+        switch (method) {
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.DELETE:
+                return "DELETE";
+            default:
+                return "GET";
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the headers of {@link DiskBasedCache} entries.
+ *
+ * <p>Headers are written in a compact format: lengths and times are varints, and common
+ * response header names are written as an index into a fixed dictionary. Headers in the
+ * original format are still read.</p>
+ */
+final class CacheHeaderCodec {
+    /** Magic number for the original cache file format, without a checksum. */
+    private static final int CACHE_MAGIC = 0x20120504;
+
+    /** Magic number for the compact cache file format, whose data is followed by a CRC32 of
+     * the data. */
+    private static final int CACHE_MAGIC_COMPACT = 0x20151008;
+
+    /** Size of the checksum that follows the data. */
+    static final int CHECKSUM_BYTES = 4;
+
+    /**
+     * Response header names written as an index into this list in the compact format. Names
+     * may only be appended, as existing files refer to them by position.
+     */
+    private static final String[] HEADER_NAMES = {
+        "Date", "Cache-Control", "Expires", "ETag", "Last-Modified", "Content-Type",
+        "Content-Length", "Content-Encoding", "Content-Language", "Content-Disposition",
+        "Transfer-Encoding", "Connection", "Keep-Alive", "Server", "Vary", "Age", "Pragma",
+        "Via", "Accept-Ranges", "Location", "Set-Cookie", "Access-Control-Allow-Origin",
+        "Strict-Transport-Security", "X-Content-Type-Options", "X-Frame-Options",
+        "X-XSS-Protection", "X-Cache", "X-Android-Sent-Millis", "X-Android-Received-Millis",
+        "X-Android-Response-Source", "X-Android-Selected-Protocol",
+    };
+
+    /** Index of each name in {@link #HEADER_NAMES}. */
+    private static final Map<String, Integer> HEADER_NAME_INDEX =
+            new HashMap<String, Integer>(HEADER_NAMES.length * 2);
+    static {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            HEADER_NAME_INDEX.put(HEADER_NAMES[i], i);
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private CacheHeaderCodec() { }
+
+    /**
+     * Reads a header, in the compact format or the original one, off of an InputStream.
+     */
+    static CacheHeader readHeader(InputStream is) throws IOException {
+        CacheHeader entry = new CacheHeader();
+        int magic = DiskBasedCache.readInt(is);
+        if (magic == CACHE_MAGIC_COMPACT) {
+            entry.checksummed = true;
+            readCompact(is, entry);
+            return entry;
+        } else if (magic != CACHE_MAGIC) {
+            // don't bother deleting, it'll get pruned eventually
+            throw new IOException();
+        }
+        entry.key = DiskBasedCache.readString(is);
+        entry.etag = DiskBasedCache.readString(is);
+        if (entry.etag.equals("")) {
+            entry.etag = null;
+        }
+        entry.serverDate = DiskBasedCache.readLong(is);
+        entry.ttl = DiskBasedCache.readLong(is);
+        entry.softTtl = DiskBasedCache.readLong(is);
+        entry.responseHeaders = DiskBasedCache.readStringStringMap(is);
+        return entry;
+    }
+
+    /**
+     * Reads the fields of a header in the compact format, following its magic number.
+     */
+    private static void readCompact(InputStream is, CacheHeader entry) throws IOException {
+        entry.key = readVarString(is);
+        entry.etag = readVarString(is);
+        if (entry.etag.equals("")) {
+            entry.etag = null;
+        }
+        entry.serverDate = readVarLong(is);
+        entry.ttl = readVarLong(is);
+        entry.softTtl = readVarLong(is);
+        int size = readVarLength(is);
+        // Not interned: the dictionary covers the names worth sharing.
+        entry.responseHeaders = (size == 0)
+                ? Collections.<String, String>emptyMap()
+                : new HashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            int name = readVarLength(is);
+            if (name > HEADER_NAMES.length) {
+                throw new IOException("Unknown header name " + name);
+            }
+            String headerName = name == 0 ? readVarString(is) : HEADER_NAMES[name - 1];
+            entry.responseHeaders.put(headerName, readVarString(is));
+        }
+    }
+
+    /**
+     * Writes a header in the compact format. A response header name in the dictionary is
+     * written as its index plus one, and any other as 0 followed by the name.
+     */
+    static void writeHeader(OutputStream os, CacheHeader entry) throws IOException {
+        DiskBasedCache.writeInt(os, CACHE_MAGIC_COMPACT);
+        writeVarString(os, entry.key);
+        writeVarString(os, entry.etag == null ? "" : entry.etag);
+        writeVarLong(os, entry.serverDate);
+        writeVarLong(os, entry.ttl);
+        writeVarLong(os, entry.softTtl);
+        if (entry.responseHeaders == null) {
+            writeVarLong(os, 0);
+            return;
+        }
+        writeVarLong(os, entry.responseHeaders.size());
+        for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+            Integer name = HEADER_NAME_INDEX.get(header.getKey());
+            if (name != null) {
+                writeVarLong(os, name + 1);
+            } else {
+                writeVarLong(os, 0);
+                writeVarString(os, header.getKey());
+            }
+            writeVarString(os, header.getValue());
+        }
+    }
+
+    /**
+     * Writes a long in 7-bit groups, least significant first, with the high bit of each byte
+     * set if more follow. Negative numbers take ten bytes.
+     */
+    static void writeVarLong(OutputStream os, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            os.write((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        os.write((int) n);
+    }
+
+    static long readVarLong(InputStream is) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = DiskBasedCache.read(is);
+            n |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads a varint that counts or indexes something, and so must fit an int.
+     */
+    static int readVarLength(InputStream is) throws IOException {
+        long n = readVarLong(is);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("Bad length " + n);
+        }
+        return (int) n;
+    }
+
+    static void writeVarString(OutputStream os, String s) throws IOException {
+        byte[] b = s.getBytes(UTF_8);
+        writeVarLong(os, b.length);
+        os.write(b, 0, b.length);
+    }
+
+    static String readVarString(InputStream is) throws IOException {
+        byte[] b = DiskBasedCache.streamToBytes(is, readVarLength(is));
+        return new String(b, UTF_8);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The journal of a {@link DiskBasedCache}: a file in the cache directory that writes, removals
+ * and hits are appended to, so that the index can be rebuilt on start, in least-recently-used
+ * order, from one sequential read instead of opening every file. It is compacted once most of
+ * its records are redundant.
+ *
+ * <p>Hits are buffered without locking and written out with the next put or removal, or in
+ * the background once enough pile up; compaction runs in the background too. The other methods
+ * synchronize on the journal, which callers may also hold to make a change to the index and
+ * the journal together.</p>
+ */
+class CacheJournal {
+    /** Magic number for current version of journal format. */
+    private static final int JOURNAL_MAGIC = 0x20151001;
+
+    /** Name of the journal file in the root directory. */
+    private static final String JOURNAL_FILE = "journal";
+
+    /** Name of the file a compacted journal is written to before it replaces the journal. */
+    private static final String JOURNAL_FILE_TMP = JOURNAL_FILE + DiskBasedCache.TMP_SUFFIX;
+
+    /** Journal record types. */
+    private static final int JOURNAL_PUT = 1;
+    private static final int JOURNAL_REMOVE = 2;
+    private static final int JOURNAL_READ = 3;
+    private static final int JOURNAL_PUT_PACKED = 4;
+
+    /** Number of redundant journal records at which the journal may be compacted. */
+    private static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+
+    /** Number of buffered hits at which they are written out without waiting for a put. */
+    private static final int MAX_PENDING_READS = 500;
+
+    /** Orders entries from least to most recently used, as the journal is written. */
+    private static final Comparator<CacheHeader> ACCESS_ORDER = new Comparator<CacheHeader>() {
+        @Override
+        public int compare(CacheHeader a, CacheHeader b) {
+            return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+        }
+    };
+
+    private final File mFile;
+    private final File mTmpFile;
+
+    /** The cache's index, written out when the journal is compacted. */
+    private final Map<String, CacheHeader> mEntries;
+
+    /** Stream appending to the journal, or null while the journal isn't usable. */
+    private OutputStream mStream;
+
+    /** Number of journal records that a compacted journal wouldn't need. */
+    private int mRedundantOps = 0;
+
+    /** Keys of hits not yet appended to the journal. */
+    private final Queue<String> mPendingReads = new ConcurrentLinkedQueue<String>();
+
+    /** Number of keys in {@link #mPendingReads}. */
+    private final AtomicInteger mPendingReadCount = new AtomicInteger();
+
+    /** Whether a background thread is due to write out hits or compact the journal. */
+    private final AtomicBoolean mMaintenanceScheduled = new AtomicBoolean();
+
+    /** Number of records read by the last replay. */
+    private int mReplayedRecords = 0;
+
+    /** Whether the last replay stopped at a record cut short. */
+    private boolean mTruncated = false;
+
+    /**
+     * @param rootDirectory The cache's root directory
+     * @param entries The cache's index
+     */
+    CacheJournal(File rootDirectory, Map<String, CacheHeader> entries) {
+        mFile = new File(rootDirectory, JOURNAL_FILE);
+        mTmpFile = new File(rootDirectory, JOURNAL_FILE_TMP);
+        mEntries = entries;
+    }
+
+    /**
+     * Returns whether a file in the root directory is the journal's.
+     */
+    static boolean isJournalFile(String name) {
+        return name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Reads the entries the journal records. A record cut short by a crash ends the journal;
+     * the ones before it still stand. A journal that can't be read is deleted.
+     *
+     * @return the entries, which only know their key, size, TTL and where they are packed, in
+     *     order from least to most recently used; or null if there's no usable journal
+     */
+    synchronized Map<String, CacheHeader> replay() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        // Ordered by access, so that hits move entries to the end.
+        Map<String, CacheHeader> entries = new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+        mTruncated = false;
+        int records = 0;
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(mFile));
+            if (DiskBasedCache.readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("Unknown journal format");
+            }
+            try {
+                int op;
+                while ((op = is.read()) != -1) {
+                    String key = DiskBasedCache.readString(is);
+                    if (op == JOURNAL_PUT || op == JOURNAL_PUT_PACKED) {
+                        CacheHeader entry = new CacheHeader();
+                        entry.key = key;
+                        entry.size = DiskBasedCache.readLong(is);
+                        entry.ttl = DiskBasedCache.readLong(is);
+                        if (op == JOURNAL_PUT_PACKED) {
+                            entry.segment = DiskBasedCache.readInt(is);
+                            entry.offset = DiskBasedCache.readLong(is);
+                        }
+                        entries.remove(key);
+                        entries.put(key, entry);
+                    } else if (op == JOURNAL_REMOVE) {
+                        entries.remove(key);
+                    } else if (op == JOURNAL_READ) {
+                        entries.get(key);
+                    } else {
+                        throw new IOException("Unknown journal record " + op);
+                    }
+                    records++;
+                }
+            } catch (EOFException e) {
+                mTruncated = true;
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Discarding journal: %s", e.toString());
+            mFile.delete();
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+        mReplayedRecords = records;
+        return entries;
+    }
+
+    /**
+     * Opens the replayed journal for appending, once the index has been rebuilt from it.
+     * Compacts it first if it was cut short or is mostly redundant.
+     */
+    synchronized void open() {
+        mRedundantOps = mReplayedRecords - mEntries.size();
+        if (mTruncated || needsCompaction()) {
+            rewrite();
+            return;
+        }
+        try {
+            mStream = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        } catch (IOException e) {
+            VolleyLog.d("Could not open journal: %s", e.toString());
+        }
+    }
+
+    /**
+     * Records an entry being written.
+     */
+    synchronized void put(CacheHeader entry) {
+        if (mStream == null) {
+            return;
+        }
+        try {
+            appendPendingReads();
+            writePut(mStream, entry);
+            mStream.flush();
+        } catch (IOException e) {
+            discard(e);
+            return;
+        }
+        countRecord();
+    }
+
+    /**
+     * Records an entry being removed.
+     */
+    synchronized void remove(String key) {
+        if (mStream == null) {
+            return;
+        }
+        try {
+            appendPendingReads();
+            mStream.write(JOURNAL_REMOVE);
+            DiskBasedCache.writeString(mStream, key);
+            mStream.flush();
+        } catch (IOException e) {
+            discard(e);
+            return;
+        }
+        countRecord();
+    }
+
+    /**
+     * Records a hit. Hits are buffered without taking the journal's lock, and written out
+     * with the next put or removal, or in the background once enough pile up; losing them to a
+     * crash only loses some recency.
+     */
+    void read(String key) {
+        mPendingReads.add(key);
+        if (mPendingReadCount.incrementAndGet() >= MAX_PENDING_READS) {
+            scheduleMaintenance();
+        }
+    }
+
+    /**
+     * Appends the buffered hits, or drops them while the journal isn't usable. They are
+     * flushed with the record that follows them.
+     */
+    private void appendPendingReads() throws IOException {
+        String key;
+        while ((key = mPendingReads.poll()) != null) {
+            mPendingReadCount.decrementAndGet();
+            if (mStream != null) {
+                mStream.write(JOURNAL_READ);
+                DiskBasedCache.writeString(mStream, key);
+                // A hit is always redundant in a compacted journal.
+                mRedundantOps++;
+            }
+        }
+    }
+
+    /**
+     * Counts a record appended, and schedules compaction if the journal has grown mostly
+     * redundant.
+     */
+    private void countRecord() {
+        // Every record but the latest put of each entry is redundant. Counting puts of new
+        // keys as well only makes compaction a little early.
+        mRedundantOps++;
+        if (needsCompaction()) {
+            scheduleMaintenance();
+        }
+    }
+
+    /**
+     * Writes out the buffered hits, and compacts the journal if it has grown mostly redundant.
+     */
+    private synchronized void maintain() {
+        try {
+            appendPendingReads();
+            if (mStream != null) {
+                mStream.flush();
+            }
+        } catch (IOException e) {
+            discard(e);
+            return;
+        }
+        if (mStream != null && needsCompaction()) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Runs {@link #maintain()} on a background thread, unless one is already due to.
+     */
+    private void scheduleMaintenance() {
+        if (!mMaintenanceScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread("Volley-CacheJournal") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    maintain();
+                } finally {
+                    mMaintenanceScheduled.set(false);
+                }
+                // Hits that piled up while this thread was finishing didn't start another one.
+                if (mPendingReadCount.get() >= MAX_PENDING_READS) {
+                    scheduleMaintenance();
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Deletes a journal that couldn't be appended to. A journal missing records would hide
+     * entries on the next start; rescan instead.
+     */
+    private void discard(IOException e) {
+        VolleyLog.d("Could not write journal: %s", e.toString());
+        close();
+        mFile.delete();
+    }
+
+    private boolean needsCompaction() {
+        return mRedundantOps >= JOURNAL_COMPACT_THRESHOLD && mRedundantOps >= mEntries.size();
+    }
+
+    /**
+     * Replaces the journal with one holding a put for each entry in the index, in
+     * least-recently-used order, and opens it for appending.
+     */
+    synchronized void rewrite() {
+        close();
+        try {
+            // The order of the index already reflects the buffered hits.
+            appendPendingReads();
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(mTmpFile));
+            try {
+                DiskBasedCache.writeInt(os, JOURNAL_MAGIC);
+                // Entries are indexed before they are journaled, so none can be missed here.
+                List<CacheHeader> entries = new ArrayList<CacheHeader>(mEntries.values());
+                Collections.sort(entries, ACCESS_ORDER);
+                for (CacheHeader entry : entries) {
+                    writePut(os, entry);
+                }
+            } finally {
+                os.close();
+            }
+            if (!mTmpFile.renameTo(mFile)) {
+                throw new IOException("Could not rename " + mTmpFile);
+            }
+            mStream = new BufferedOutputStream(new FileOutputStream(mFile, true));
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            VolleyLog.d("Could not write journal: %s", e.toString());
+            mTmpFile.delete();
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Stops appending to the journal until it is rewritten.
+     */
+    synchronized void close() {
+        if (mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException ignored) { }
+            mStream = null;
+        }
+    }
+
+    /**
+     * Writes the journal record of an entry being put, recording where it is packed, if it is.
+     */
+    private static void writePut(OutputStream os, CacheHeader entry) throws IOException {
+        os.write(entry.isPacked() ? JOURNAL_PUT_PACKED : JOURNAL_PUT);
+        DiskBasedCache.writeString(os, entry.key);
+        DiskBasedCache.writeLong(os, entry.size);
+        DiskBasedCache.writeLong(os, entry.ttl);
+        if (entry.isPacked()) {
+            DiskBasedCache.writeInt(os, entry.segment);
+            DiskBasedCache.writeLong(os, entry.offset);
+        }
+    }
+}
@@ -16,11 +16,17 @@
 
 package com.android.volley.toolbox;
 
+import android.os.Process;
 import android.os.SystemClock;
 
 import com.android.volley.Cache;
+import com.android.volley.StreamingCache;
 import com.android.volley.VolleyLog;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,24 +35,67 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>The index is rebuilt on start from a journal, or else by scanning the directory in the
+ * background; entries are evicted in the background too, in the order an
+ * {@link EvictionPolicy} ranks them. Small entries can be packed into shared segment files
+ * with {@link #setMaxPackedDataSize(int)}.</p>
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements StreamingCache {
 
     /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    private final ConcurrentHashMap<String, CacheHeader> mEntries =
+            new ConcurrentHashMap<String, CacheHeader>(16, .75f, LOCK_STRIPES);
 
     /** Total amount of space currently used by the cache in bytes. */
-    private long mTotalSize = 0;
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /** Source of the access stamps that order entries from least to most recently used. */
+    private final AtomicLong mAccessClock = new AtomicLong();
+
+    /** Locks guarding the file of each key, striped by key. */
+    private final ReentrantReadWriteLock[] mLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    /** Held while pruning, so that only one thread prunes at a time. */
+    private final Object mPruneLock = new Object();
+
+    /** Whether a trimmer thread has been started and not yet finished. */
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+
+    /** The entry the trimmer would evict next, as of its last pass, or null. */
+    private volatile CacheHeader mNextVictim;
+
+    /** The last write skipped for lack of room, for the trimmer to make room for, or null. */
+    private final AtomicReference<CacheHeader> mSkippedWrite =
+            new AtomicReference<CacheHeader>();
 
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
@@ -54,14 +103,61 @@ public class DiskBasedCache implements Cache {
     /** The maximum size of the cache in bytes. */
     private final int mMaxCacheSizeInBytes;
 
+    /** Thread indexing the files on disk, or null if initialize() hasn't been called. */
+    private Thread mIndexer;
+
+    /** Whether every file on disk has been indexed, so a key missing from mEntries is a miss. */
+    private volatile boolean mIndexed = false;
+
+    /** Journal the index is rebuilt from on start. */
+    private final CacheJournal mJournal;
+
+    /** Segment files small entries are packed into. */
+    private final SegmentStore mSegments;
+
+    /** Names of the response headers stored with entries, or null to store all of them. */
+    private volatile Set<String> mKeptResponseHeaders = null;
+
+    /** Largest data size of entries packed into segments; 0 gives every entry its own file. */
+    private volatile int mMaxPackedDataSize = 0;
+
+    /** Policy choosing the entries to evict. */
+    private volatile EvictionPolicy mEvictionPolicy = new LruEvictionPolicy();
+
+    /** Counters reported by {@link #getStats()}. */
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mRejectedWriteCount = new AtomicLong();
+
+    /** Charset of the keys hashed into file names. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
     /** High water mark percentage for the cache */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
-    /** Magic number for current version of cache file format. */
-    private static final int CACHE_MAGIC = 0x20120504;
+    /** Share of the maximum size at which the trimmer is started. */
+    private static final float TRIM_START_FACTOR = HYSTERESIS_FACTOR;
+
+    /** Share of the maximum size the trimmer trims the cache down to. */
+    private static final float TRIM_TARGET_FACTOR = 0.8f;
+
+    /** Number of lock stripes; must be a power of two. */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * Names of the response headers {@link HttpHeaderParser} reads, for
+     * {@link #setKeptResponseHeaders(Collection)}.
+     */
+    public static final Set<String> PARSED_HEADERS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(
+                    "Date", "Cache-Control", "Expires", "ETag", "Content-Type")));
+
+    /** Suffix of files being written, before they are moved into place. */
+    static final String TMP_SUFFIX = ".tmp";
 
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
@@ -71,6 +167,16 @@ public class DiskBasedCache implements Cache {
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
+        mJournal = new CacheJournal(rootDirectory, mEntries);
+        mSegments = new SegmentStore(rootDirectory, new SegmentStore.Compactor() {
+            @Override
+            public int moveLiveRecords(int segment) {
+                return movePackedEntries(segment);
+            }
+        });
     }
 
     /**
@@ -82,19 +188,77 @@ public class DiskBasedCache implements Cache {
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
     }
 
+    /**
+     * Sets the policy that chooses which entries to evict when the cache is full.
+     * @param evictionPolicy The policy to use from now on.
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null) {
+            throw new IllegalArgumentException("evictionPolicy must not be null");
+        }
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Sets the largest entry, by data size, to pack into a shared segment file rather than
+     * write to a file of its own. Entries already written stay where they are until rewritten.
+     * @param maxPackedDataSize Largest data size to pack, in bytes, or 0 to pack nothing.
+     */
+    public void setMaxPackedDataSize(int maxPackedDataSize) {
+        if (maxPackedDataSize < 0 || maxPackedDataSize > SegmentStore.SEGMENT_BYTES) {
+            throw new IllegalArgumentException("maxPackedDataSize must be between 0 and "
+                    + SegmentStore.SEGMENT_BYTES);
+        }
+        mMaxPackedDataSize = maxPackedDataSize;
+    }
+
+    /**
+     * Sets the response headers to store with entries written from now on; the others are
+     * dropped, and missing from the entries read back. Names are matched ignoring case.
+     * @param names Names of the headers to keep, such as {@link #PARSED_HEADERS}, or null to
+     *     keep all of them.
+     */
+    public void setKeptResponseHeaders(Collection<String> names) {
+        if (names == null) {
+            mKeptResponseHeaders = null;
+            return;
+        }
+        Set<String> kept = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        kept.addAll(names);
+        mKeptResponseHeaders = kept;
+    }
+
+    /**
+     * Returns a snapshot of the cache's usage since it was created.
+     */
+    public Stats getStats() {
+        return new Stats(mHitCount.get(), mMissCount.get(), mEvictionCount.get(),
+                mRejectedWriteCount.get(), mEntries.size(), mTotalSize.get());
+    }
+
     /**
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    public void clear() {
+        lockAll();
+        try {
+            mJournal.close();
+            mSegments.clear();
+            File[] files = mRootDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mEntries.clear();
+            mTotalSize.set(0);
+            if (mIndexed) {
+                mJournal.rewrite();
             }
+        } finally {
+            unlockAll();
         }
-        mEntries.clear();
-        mTotalSize = 0;
         VolleyLog.d("Cache cleared.");
     }
 
@@ -102,70 +266,346 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
+    public Entry get(String key) {
+        return getEntry(key, true);
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise. Its data is
+     * left on disk, to be read through {@link Entry#source}.
+     */
+    @Override
+    public Entry getStreaming(String key) {
+        return getEntry(key, false);
+    }
+
+    private Entry getEntry(String key, boolean readData) {
+        mEvictionPolicy.onRequest(key);
+        Entry entry = null;
+        boolean corrupt = false;
+        Lock lock = lockFor(key).readLock();
+        lock.lock();
+        try {
+            entry = readEntry(key, readData);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", getFilenameForKey(key), e.toString());
+            corrupt = true;
+        } finally {
+            lock.unlock();
+        }
+        if (corrupt) {
+            remove(key);
+        }
+        (entry != null ? mHitCount : mMissCount).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Reads the entry with the specified key from its file. Must be called holding a lock
+     * for the key.
+     * @return The entry, or null if there is none.
+     */
+    private Entry readEntry(String key, boolean readData) throws IOException {
         CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
+        // if the entry does not exist, return, unless it may not have been indexed yet.
+        if (entry == null && mIndexed) {
             return null;
         }
+        if (entry != null && entry.isPacked()) {
+            // Small enough that streaming wouldn't save anything.
+            Entry packed = readPacked(entry);
+            entry.lastAccess = mAccessClock.incrementAndGet();
+            mJournal.read(key);
+            return packed;
+        }
 
         File file = getFileForKey(key);
-        CountingInputStream cis = null;
+        boolean legacyName = false;
+        if (entry == null && !file.exists()) {
+            // The scan may not have renamed it yet.
+            file = getLegacyFileForKey(key);
+            if (!file.exists()) {
+                return null;
+            }
+            legacyName = true;
+        }
+        FileInputStream fis = new FileInputStream(file);
         try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
+            CountingInputStream cis = new CountingInputStream(new BufferedInputStream(fis));
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (!key.equals(header.key)) {
+                if (entry == null) {
+                    // Another key's file under a name shared by hash code.
                     return null;
                 }
+                throw new IOException("File for " + key + " holds " + header.key);
+            }
+            if (entry == null) {
+                // Not indexed yet; index it now rather than wait for the background scan,
+                // unless it's still to be renamed, which is left to the scan.
+                if (!legacyName) {
+                    header.size = file.length();
+                    putEntry(key, header);
+                }
+            } else {
+                entry.lastAccess = mAccessClock.incrementAndGet();
+                mJournal.read(key);
+            }
+            long length = header.dataLength(file.length(), cis.bytesRead);
+            if (!readData) {
+                Entry streamed = header.toCacheEntry(null);
+                streamed.source = new FileDataSource(file, key, length);
+                return streamed;
             }
+            byte[] data = readData(fis.getChannel(), cis.bytesRead, length);
+            if (header.checksummed) {
+                verifyChecksum(fis.getChannel(), cis.bytesRead + length, data);
+            }
+            // Entries indexed from the journal only know their key and size.
+            return header.toCacheEntry(data);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) { }
         }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Reads a packed entry's record from its segment, and checks it is the entry's.
+     */
+    private Entry readPacked(CacheHeader entry) throws IOException {
+        byte[] record = mSegments.read(entry);
+        CountingInputStream cis = new CountingInputStream(new ByteArrayInputStream(record));
+        CacheHeader header = CacheHeader.readHeader(cis);
+        if (!entry.key.equals(header.key)) {
+            throw new IOException("Record for " + entry.key + " holds " + header.key);
+        }
+        long length = header.dataLength(record.length, cis.bytesRead);
+        if (length < 0) {
+            throw new IOException("Bad data length " + length);
+        }
+        byte[] data = streamToBytes(cis, (int) length);
+        if (header.checksummed) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if (readInt(cis) != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+        }
+        return header.toCacheEntry(data);
+    }
+
+    /**
+     * Initializes the DiskBasedCache. Creates the root directory if necessary, and rebuilds the
+     * index from the journal. Without a usable journal, starts scanning for all files currently
+     * in the root directory on a background thread.
      */
     @Override
     public synchronized void initialize() {
+        if (mIndexer != null) {
+            return;
+        }
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
             }
-            return;
         }
+        final boolean fromJournal;
+        lockAll();
+        try {
+            fromJournal = readJournal();
+        } finally {
+            unlockAll();
+        }
+        mIndexer = new Thread("Volley-CacheIndexer") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                if (fromJournal) {
+                    deleteUnindexedFiles();
+                } else {
+                    indexFiles();
+                }
+            }
+        };
+        mIndexer.start();
+    }
 
+    /**
+     * Rebuilds the index by replaying the journal, and opens the journal for appending. Must
+     * be called holding every lock.
+     *
+     * @return false if there's no usable journal, and the files need scanning
+     */
+    private boolean readJournal() {
+        long startTime = SystemClock.elapsedRealtime();
+        Map<String, CacheHeader> entries = mJournal.replay();
+        if (entries == null) {
+            return false;
+        }
+        for (CacheHeader entry : entries.values()) {
+            putEntry(entry.key, entry);
+        }
+        for (CacheHeader entry : mSegments.load(mEntries.values())) {
+            removeEntry(entry.key);
+        }
+        mIndexed = true;
+        mJournal.open();
+        if (VolleyLog.sDebug) {
+            VolleyLog.v("read journal, %d entries, %d bytes, %d ms", mEntries.size(),
+                    mTotalSize.get(), SystemClock.elapsedRealtime() - startTime);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes files left behind by a crash between writing an entry and journaling it, which
+     * the index built from the journal doesn't know about. The names of the indexed files are
+     * gathered without holding any lock; each file that isn't among them is then checked again,
+     * and deleted, holding only the lock of the key its header names.
+     */
+    private void deleteUnindexedFiles() {
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
+        // Any file written after the listing was indexed before it was written.
+        Set<String> indexed = new HashSet<String>(mEntries.size() * 2);
+        for (CacheHeader entry : mEntries.values()) {
+            if (!entry.isPacked()) {
+                indexed.add(getFilenameForKey(entry.key));
+            }
+        }
         for (File file : files) {
-            FileInputStream fis = null;
+            String name = file.getName();
+            if (indexed.contains(name) || CacheJournal.isJournalFile(name)) {
+                continue;
+            }
+            if (SegmentStore.isSegmentFile(name)) {
+                mSegments.deleteUnused(file);
+            } else {
+                deleteUnindexedFile(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, unless it is the file of an entry in the index. The entry may have been
+     * written since the index was last looked at, so the check is made holding its key's lock.
+     * A temporary file is deleted too, once no write for its key can be in progress.
+     */
+    private void deleteUnindexedFile(File file) {
+        String key;
+        try {
+            key = readHeader(file).key;
+        } catch (IOException e) {
+            // The file may have been mid-write; only delete it if it's still unreadable
+            // once no write can be in progress.
+            lockAll();
             try {
-                fis = new FileInputStream(file);
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
-                putEntry(entry.key, entry);
-            } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
+                key = readHeader(file).key;
+            } catch (IOException stillBad) {
+                file.delete();
+                return;
+            } finally {
+                unlockAll();
+            }
+        }
+        Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            CacheHeader entry = mEntries.get(key);
+            if (entry == null || entry.isPacked() || !file.equals(getFileForKey(key))) {
+                file.delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the header of every file in the root directory into the index. No lock is held
+     * while reading, so lookups and writes go on while the scan runs.
+     */
+    private void indexFiles() {
+        long startTime = SystemClock.elapsedRealtime();
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Left behind by a write that didn't finish, or written to right now;
+                    // writes are accepted while the scan runs.
+                    deleteUnindexedFile(file);
+                } else if (SegmentStore.isSegmentFile(name)) {
+                    mSegments.deleteUnused(file);
+                } else if (!CacheJournal.isJournalFile(name)) {
+                    indexFile(file);
                 }
+            }
+        }
+        synchronized (mJournal) {
+            mIndexed = true;
+            mJournal.rewrite();
+        }
+        if (VolleyLog.sDebug) {
+            VolleyLog.v("indexed %d files, %d bytes, %d ms", files == null ? 0 : files.length,
+                    mTotalSize.get(), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    private void indexFile(File file) {
+        CacheHeader entry;
+        try {
+            entry = readHeader(file);
+        } catch (IOException e) {
+            // The file may have been mid-write; only delete it if it's still unreadable
+            // once no write can be in progress.
+            lockAll();
+            try {
+                entry = readHeader(file);
+            } catch (IOException stillBad) {
+                file.delete();
+                return;
             } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
+                unlockAll();
+            }
+        }
+        Lock lock = lockFor(entry.key).writeLock();
+        lock.lock();
+        try {
+            File target = getFileForKey(entry.key);
+            // Skip entries that were looked up, rewritten or removed since the scan began.
+            if (!mEntries.containsKey(entry.key) && file.exists()) {
+                if (!file.equals(target)) {
+                    // A file under the new name is the newer one; the scan will get to it.
+                    if (target.exists() || !file.renameTo(target)) {
+                        file.delete();
+                        return;
                     }
-                } catch (IOException ignored) { }
+                }
+                entry.size = target.length();
+                putEntry(entry.key, entry);
+            } else if (!file.equals(target)) {
+                // Under its old name, and superseded by the entry under its new one.
+                file.delete();
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the header of a cache file.
+     */
+    private static CacheHeader readHeader(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return CacheHeader.readHeader(new BufferedInputStream(fis));
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) { }
         }
     }
 
@@ -175,48 +615,266 @@ public class DiskBasedCache implements Cache {
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            Entry entry;
+            try {
+                entry = readEntry(key, true);
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", getFilenameForKey(key), e.toString());
+                removeFile(key);
+                return;
             }
-            put(key, entry);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                // The size doesn't change, so there's no need to prune.
+                writeEntry(key, entry, null);
+            }
+        } finally {
+            lock.unlock();
         }
-
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
+    public void put(String key, Entry entry) {
+        if (entry.data == null) {
+            putStreaming(key, entry);
+            return;
+        }
+        // Prune before taking this key's lock, since pruning takes the locks of other keys.
+        if (!makeRoomFor(new CacheHeader(key, entry))) {
+            return;
+        }
+        Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            writeEntry(key, entry, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts an entry whose data is read from {@link Entry#source}. The source may be this
+     * cache's own file for the key, as when a 304 refreshes a streamed entry; it is only
+     * replaced once the copy is complete.
+     */
+    private void putStreaming(String key, Entry entry) {
+        InputStream in;
+        try {
+            // Open the source before pruning, which might delete it.
+            in = entry.source.open();
+        } catch (IOException e) {
+            VolleyLog.d("Could not read cache entry for key=%s: %s", key, e.toString());
+            return;
+        }
+        try {
+            if (!makeRoomFor(new CacheHeader(key, entry))) {
+                return;
+            }
+            Lock lock = lockFor(key).writeLock();
+            lock.lock();
+            try {
+                writeEntry(key, entry, in);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Writes an entry to a segment if it is small enough to pack, or else to its own file.
+     * Must be called holding the write lock for the key.
+     * @param in Stream to copy the data from, or null to write {@link Entry#data}.
+     */
+    private void writeEntry(String key, Entry entry, InputStream in) {
+        int maxPackedDataSize = mMaxPackedDataSize;
+        if (maxPackedDataSize > 0 && entry.getDataLength() <= maxPackedDataSize) {
+            writePacked(key, entry, in);
+        } else {
+            writeFile(key, entry, in);
+        }
+    }
+
+    /**
+     * Writes an entry and a checksum of its data to a temporary file, moves it into place and
+     * indexes it. Must be called holding the write lock for the key.
+     * @param in Stream to copy the data from, or null to write {@link Entry#data}.
+     */
+    private void writeFile(String key, Entry entry, InputStream in) {
         File file = getFileForKey(key);
+        File tmpFile = new File(mRootDirectory, file.getName() + TMP_SUFFIX);
         try {
-            FileOutputStream fos = new FileOutputStream(file);
             CacheHeader e = new CacheHeader(key, entry);
-            e.writeHeader(fos);
-            fos.write(entry.data);
-            fos.close();
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            try {
+                writeRecord(os, e, entry, in);
+            } finally {
+                os.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tmpFile);
+            }
+            // Account for the header too, as entries indexed from disk do.
+            e.size = file.length();
             putEntry(key, e);
+            mJournal.put(e);
             return;
         } catch (IOException e) {
+            // The previous entry, if any, is still intact.
+            VolleyLog.d("Could not write cache entry for key=%s: %s", key, e.toString());
         }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        if (tmpFile.exists() && !tmpFile.delete()) {
+            VolleyLog.d("Could not clean up file %s", tmpFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Appends an entry and a checksum of its data to the active segment and indexes it, then
+     * deletes the file the key's previous entry may have had. Must be called holding the
+     * write lock for the key.
+     * @param in Stream to copy the data from, or null to write {@link Entry#data}.
+     */
+    private void writePacked(String key, Entry entry, InputStream in) {
+        CacheHeader oldEntry = mEntries.get(key);
+        try {
+            CacheHeader e = new CacheHeader(key, entry);
+            ByteArrayOutputStream record = new ByteArrayOutputStream((int) e.size + 256);
+            writeRecord(record, e, entry, in);
+            mSegments.append(e, record.toByteArray());
+            putEntry(key, e);
+            mJournal.put(e);
+        } catch (IOException e) {
+            // The previous entry, if any, is still intact.
+            VolleyLog.d("Could not write cache entry for key=%s: %s", key, e.toString());
+            return;
+        }
+        // Before the scan finishes, a key that isn't indexed may still have a file.
+        if (oldEntry != null ? !oldEntry.isPacked() : !mIndexed) {
+            getFileForKey(key).delete();
+        }
+    }
+
+    /**
+     * Writes an entry's header, its data and a checksum of the data.
+     * @param in Stream to copy the data from, or null to write {@link Entry#data}.
+     */
+    private void writeRecord(OutputStream os, CacheHeader e, Entry entry, InputStream in)
+            throws IOException {
+        e.responseHeaders = keptResponseHeaders(e.responseHeaders);
+        CRC32 crc = new CRC32();
+        if (!e.writeHeader(os)) {
+            throw new IOException("Could not write header");
+        }
+        if (in == null) {
+            os.write(entry.data);
+            crc.update(entry.data);
+        } else {
+            copyData(in, new CheckedOutputStream(os, crc), e.size);
+        }
+        writeInt(os, (int) crc.getValue());
+    }
+
+    /**
+     * Returns the response headers to store of the ones given.
+     */
+    private Map<String, String> keptResponseHeaders(Map<String, String> headers) {
+        Set<String> kept = mKeptResponseHeaders;
+        if (kept == null || headers == null) {
+            return headers;
+        }
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (kept.contains(header.getKey())) {
+                result.put(header.getKey(), header.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves the entries packed into a segment being compacted to the active segment. Each
+     * entry is locked only while it is moved, so reads and writes go on in between.
+     * @return the number of entries moved
+     */
+    private int movePackedEntries(int segment) {
+        int moved = 0;
+        for (CacheHeader e : mEntries.values()) {
+            if (e.segment != segment) {
+                continue;
+            }
+            Lock lock = lockFor(e.key).writeLock();
+            lock.lock();
+            try {
+                // Skip entries rewritten or removed since the segment was sealed.
+                if (mEntries.get(e.key) != e) {
+                    continue;
+                }
+                CacheHeader copy = new CacheHeader();
+                copy.key = e.key;
+                copy.ttl = e.ttl;
+                try {
+                    mSegments.append(copy, mSegments.read(e));
+                } catch (IOException ex) {
+                    VolleyLog.d("Could not move cache entry for key=%s: %s", e.key,
+                            ex.toString());
+                    removeFile(e.key);
+                    continue;
+                }
+                // Moving an entry isn't a use of it.
+                copy.lastAccess = e.lastAccess;
+                mEntries.put(e.key, copy);
+                mSegments.addLiveBytes(copy, copy.size);
+                mSegments.addLiveBytes(e, -e.size);
+                mJournal.put(copy);
+                moved++;
+            } finally {
+                lock.unlock();
+            }
         }
+        return moved;
     }
 
     /**
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
+    public void remove(String key) {
+        Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            removeFile(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the file of a key and removes it from the index. Must be called holding the
+     * write lock for the key.
+     */
+    private void removeFile(String key) {
+        CacheHeader entry = mEntries.get(key);
+        // A packed entry's record is left as dead space in its segment.
+        boolean deleted = (entry != null && entry.isPacked()) || getFileForKey(key).delete();
+        if (!mIndexed) {
+            // Don't let the scan find the entry under its old name.
+            deleted |= getLegacyFileForKey(key).delete();
+        }
         removeEntry(key);
+        mJournal.remove(key);
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
                     key, getFilenameForKey(key));
@@ -224,15 +882,25 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Creates a filename for the specified cache key: the hex SHA-256 digest of its UTF-8
+     * bytes.
      * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @return A unique filename, of fixed length.
      */
-    private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private static String getFilenameForKey(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256.
+            throw new IllegalStateException(e);
+        }
+        StringBuilder filename = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            filename.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return filename.toString();
     }
 
     /**
@@ -243,76 +911,325 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Returns the file the given cache key had before files were named by digest. Keys whose
+     * halves have the same hash codes share it.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
-            return;
+    private File getLegacyFileForKey(String key) {
+        int firstHalfLength = key.length() / 2;
+        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
+        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
+        return new File(mRootDirectory, localFilename);
+    }
+
+    /**
+     * Makes room for an entry about to be written. Only checks the size, and starts the
+     * trimmer if the cache is getting full. If the trimmer has fallen so far behind that the
+     * entry doesn't fit, the write neither waits for it nor ranks entries itself: it evicts the
+     * entry the trimmer would evict next, if the policy finds the new entry worth it and that
+     * makes room, and is skipped otherwise. A skipped write removes the key's current entry,
+     * which the new one was to replace, and has the trimmer make room for the entry the next
+     * time it is written if the policy finds it worth it. Must be called without holding any
+     * key's lock.
+     * @param incoming The entry about to be written.
+     * @return whether to write the entry
+     */
+    private boolean makeRoomFor(CacheHeader incoming) {
+        long size = mTotalSize.get() + incoming.size;
+        if (size >= mMaxCacheSizeInBytes * TRIM_START_FACTOR) {
+            scheduleTrim();
         }
-        if (VolleyLog.sDebug) {
-            VolleyLog.v("Pruning old cache entries.");
+        if (size < mMaxCacheSizeInBytes || evictNextVictimFor(incoming)) {
+            return true;
         }
+        mRejectedWriteCount.incrementAndGet();
+        mSkippedWrite.set(incoming);
+        scheduleTrim();
+        remove(incoming.key);
+        return false;
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+    /**
+     * Evicts the entry the trimmer would evict next to make room for an entry about to be
+     * written, if the eviction policy admits the new entry and evicting that one is enough.
+     * Never waits for a lock. Must be called without holding any key's lock.
+     * @return whether the entry was evicted
+     */
+    private boolean evictNextVictimFor(CacheHeader incoming) {
+        CacheHeader victim = mNextVictim;
+        if (victim == null
+                || mTotalSize.get() - victim.size + incoming.size >= mMaxCacheSizeInBytes) {
+            return false;
+        }
+        incoming.lastAccess = mAccessClock.get() + 1;
+        if (!mEvictionPolicy.admit(incoming, victim, System.currentTimeMillis())) {
+            return false;
+        }
+        Lock lock = lockFor(victim.key).writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (!evictLocked(victim)) {
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        mEvictionCount.incrementAndGet();
+        return true;
+    }
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
+    /**
+     * Starts a trimmer thread, unless one is already running.
+     */
+    private void scheduleTrim() {
+        if (!mTrimScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread("Volley-CacheTrimmer") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    trim();
+                } finally {
+                    mTrimScheduled.set(false);
+                }
+                // Writes that crossed the mark while this thread was finishing didn't start
+                // another one.
+                if (mTotalSize.get() >= mMaxCacheSizeInBytes * TRIM_START_FACTOR
+                        || mSkippedWrite.get() != null) {
+                    scheduleTrim();
+                }
             }
-            iterator.remove();
-            prunedFiles++;
+        }.start();
+    }
+
+    /**
+     * Evicts entries in the order the eviction policy ranks them until the cache is down to
+     * its trim target, or further if a skipped write needs it and the policy finds it worth
+     * it. Each entry is locked only while it is evicted, so reads and writes go on in between.
+     */
+    private void trim() {
+        synchronized (mPruneLock) {
+            EvictionPolicy policy = mEvictionPolicy;
+            long now = System.currentTimeMillis();
+            long targetSize = (long) (mMaxCacheSizeInBytes * TRIM_TARGET_FACTOR);
+            List<CacheHeader> victims = null;
+            CacheHeader skipped = mSkippedWrite.getAndSet(null);
+            long roomTarget = skipped == null
+                    ? 0 : (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) - skipped.size;
+            if (roomTarget > 0 && roomTarget < targetSize) {
+                victims = entriesInEvictionOrder(policy, now);
+                skipped.lastAccess = mAccessClock.get() + 1;
+                if (victims.isEmpty() || policy.admit(skipped, victims.get(0), now)) {
+                    targetSize = roomTarget;
+                }
+            }
+            if (mTotalSize.get() <= targetSize) {
+                return;
+            }
+            long before = mTotalSize.get();
+            long startTime = SystemClock.elapsedRealtime();
+            if (victims == null) {
+                victims = entriesInEvictionOrder(policy, now);
+            }
+            int prunedFiles = evict(victims, targetSize);
+            // Let writes that find the cache full evict the next entry in line themselves.
+            CacheHeader nextVictim = null;
+            for (CacheHeader e : victims) {
+                if (mEntries.get(e.key) == e) {
+                    nextVictim = e;
+                    break;
+                }
+            }
+            mNextVictim = nextVictim;
+            if (VolleyLog.sDebug) {
+                VolleyLog.v("trimmed %d files, %d bytes, %d ms", prunedFiles,
+                        (mTotalSize.get() - before), SystemClock.elapsedRealtime() - startTime);
+            }
+        }
+    }
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+    /**
+     * Evicts entries, in the given order, until the total size is below a target. Must be
+     * called holding the prune lock, and no key's lock.
+     * @param victims Entries in the order to evict them.
+     * @param targetSize The total size to get below.
+     * @return the number of entries evicted
+     */
+    private int evict(List<CacheHeader> victims, long targetSize) {
+        int prunedFiles = 0;
+        for (CacheHeader e : victims) {
+            if (mTotalSize.get() < targetSize) {
                 break;
             }
+            Lock lock = lockFor(e.key).writeLock();
+            lock.lock();
+            try {
+                if (!evictLocked(e)) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            prunedFiles++;
         }
+        mEvictionCount.addAndGet(prunedFiles);
+        return prunedFiles;
+    }
 
-        if (VolleyLog.sDebug) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    /**
+     * Evicts an entry, unless it has been rewritten or removed since it was ranked. Must be
+     * called holding the key's write lock.
+     * @return whether the entry was evicted
+     */
+    private boolean evictLocked(CacheHeader e) {
+        if (mEntries.get(e.key) != e) {
+            return false;
         }
+        boolean deleted = e.isPacked() || getFileForKey(e.key).delete();
+        if (!deleted) {
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                    e.key, getFilenameForKey(e.key));
+        }
+        removeEntry(e.key);
+        mJournal.remove(e.key);
+        return true;
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Returns the indexed entries in the order a policy would evict them.
+     */
+    private List<CacheHeader> entriesInEvictionOrder(EvictionPolicy policy, long now) {
+        // Scores can change while sorting, so sort on a copy of them.
+        List<Ranked> ranked = new ArrayList<Ranked>(mEntries.size());
+        for (CacheHeader entry : mEntries.values()) {
+            ranked.add(new Ranked(entry, policy.score(entry, now)));
+        }
+        Collections.sort(ranked);
+        List<CacheHeader> entries = new ArrayList<CacheHeader>(ranked.size());
+        for (Ranked r : ranked) {
+            entries.add(r.entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Puts the entry with the specified key into the index, as the most recently used.
      * @param key The key to identify the entry by.
      * @param entry The entry to cache.
      */
     private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+        entry.lastAccess = mAccessClock.incrementAndGet();
+        CacheHeader oldEntry = mEntries.put(key, entry);
+        mTotalSize.addAndGet(oldEntry == null ? entry.size : entry.size - oldEntry.size);
+        mSegments.addLiveBytes(entry, entry.size);
+        if (oldEntry != null) {
+            mSegments.addLiveBytes(oldEntry, -oldEntry.size);
         }
-        mEntries.put(key, entry);
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Removes the entry identified by 'key' from the index.
      */
     private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
+        CacheHeader entry = mEntries.remove(key);
         if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+            mTotalSize.addAndGet(-entry.size);
+            mSegments.addLiveBytes(entry, -entry.size);
+        }
+    }
+
+    private ReentrantReadWriteLock lockFor(String key) {
+        int h = key.hashCode();
+        // Spread the high bits downwards so that they take part in choosing the stripe.
+        h ^= (h >>> 16);
+        return mLocks[h & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Takes the write lock of every stripe, always in the same order.
+     */
+    private void lockAll() {
+        for (ReentrantReadWriteLock lock : mLocks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = mLocks.length - 1; i >= 0; i--) {
+            mLocks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads an entry's data from its file, straight from the channel into the returned array
+     * rather than through a buffered stream. Callers that don't need the data in memory should
+     * stream it with {@link #getStreaming(String)} instead.
+     * @param channel Channel of the entry's file.
+     * @param offset Position of the data in the file, just past the header.
+     * @param length Length of the data.
+     */
+    static byte[] readData(FileChannel channel, long offset, long length)
+            throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad data length " + length);
+        }
+        byte[] data = new byte[(int) length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new IOException("Expected " + length + " bytes, read "
+                        + buffer.position() + " bytes");
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Checks the data read from a file against the checksum that follows it.
+     * @param channel Channel of the entry's file.
+     * @param offset Position of the checksum in the file, just past the data.
+     * @param data The data read.
+     */
+    private static void verifyChecksum(FileChannel channel, long offset, byte[] data)
+            throws IOException {
+        ByteBuffer checksum = ByteBuffer.allocate(CacheHeaderCodec.CHECKSUM_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (checksum.hasRemaining()) {
+            if (channel.read(checksum, offset + checksum.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (checksum.getInt(0) != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch");
+        }
+    }
+
+    /**
+     * Copies exactly length bytes from an InputStream to an OutputStream.
+     */
+    private static void copyData(InputStream in, OutputStream os, long length)
+            throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        long copied = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            os.write(buffer, 0, count);
+            copied += count;
+        }
+        if (copied != length) {
+            throw new IOException("Expected " + length + " bytes, read " + copied + " bytes");
         }
     }
 
     /**
      * Reads the contents of an InputStream into a byte[].
      * */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+    static byte[] streamToBytes(InputStream in, int length) throws IOException {
         byte[] bytes = new byte[length];
         int count;
         int pos = 0;
@@ -320,7 +1237,9 @@ public class DiskBasedCache implements Cache {
             pos += count;
         }
         if (pos != length) {
-            throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+            // An EOFException, so that a journal record cut short in a string counts as the
+            // truncated tail it is.
+            throw new EOFException("Expected " + length + " bytes, read " + pos + " bytes");
         }
         return bytes;
     }
@@ -329,7 +1248,7 @@ public class DiskBasedCache implements Cache {
      * Handles holding onto the cache headers for an entry.
      */
     // Visible for testing.
-    static class CacheHeader {
+    static class CacheHeader implements EvictionPolicy.Candidate {
         /** The size of the data identified by this CacheHeader. (This is not
          * serialized to disk. */
         public long size;
@@ -352,7 +1271,20 @@ public class DiskBasedCache implements Cache {
         /** Headers from the response resulting in this cache entry. */
         public Map<String, String> responseHeaders;
 
-        private CacheHeader() { }
+        /** Stamp of the last access, ordering entries by recency. (Not serialized.) */
+        public volatile long lastAccess;
+
+        /** Whether the data on disk is followed by a checksum. (Not serialized.) */
+        public boolean checksummed;
+
+        /** Id of the segment the entry is packed into, or -1 if it has its own file. (Not
+         * serialized.) */
+        public int segment = -1;
+
+        /** Position of the entry's record in its segment. (Not serialized.) */
+        public long offset;
+
+        CacheHeader() { }
 
         /**
          * Instantiates a new CacheHeader object
@@ -361,7 +1293,7 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.getDataLength();
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.ttl = entry.ttl;
@@ -375,22 +1307,43 @@ public class DiskBasedCache implements Cache {
          * @throws IOException
          */
         public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
-            int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
-                // don't bother deleting, it'll get pruned eventually
-                throw new IOException();
-            }
-            entry.key = readString(is);
-            entry.etag = readString(is);
-            if (entry.etag.equals("")) {
-                entry.etag = null;
-            }
-            entry.serverDate = readLong(is);
-            entry.ttl = readLong(is);
-            entry.softTtl = readLong(is);
-            entry.responseHeaders = readStringStringMap(is);
-            return entry;
+            return CacheHeaderCodec.readHeader(is);
+        }
+
+        /**
+         * Returns whether the entry is packed into a segment rather than in its own file.
+         */
+        boolean isPacked() {
+            return segment >= 0;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        @Override
+        public long getTtl() {
+            return ttl;
+        }
+
+        /**
+         * Returns the length of the data in a file holding this header.
+         * @param fileLength Length of the file.
+         * @param headerLength Length of the header, at the start of the file.
+         */
+        long dataLength(long fileLength, long headerLength) {
+            return fileLength - headerLength - (checksummed ? CacheHeaderCodec.CHECKSUM_BYTES : 0);
         }
 
         /**
@@ -413,13 +1366,7 @@ public class DiskBasedCache implements Cache {
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
+                CacheHeaderCodec.writeHeader(os, this);
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -430,6 +1377,190 @@ public class DiskBasedCache implements Cache {
 
     }
 
+    /**
+     * Streams the data of an entry from its file, checking that the file still holds the same
+     * entry when the stream is opened.
+     */
+    private static class FileDataSource implements DataSource {
+        private final File mFile;
+        private final String mKey;
+        private final long mLength;
+
+        private FileDataSource(File file, String key, long length) {
+            mFile = file;
+            mKey = key;
+            mLength = length;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            FileInputStream fis = new FileInputStream(mFile);
+            try {
+                CountingInputStream cis = new CountingInputStream(new BufferedInputStream(fis));
+                CacheHeader header = CacheHeader.readHeader(cis);
+                if (!mKey.equals(header.key)
+                        || header.dataLength(fis.getChannel().size(), cis.bytesRead) != mLength) {
+                    throw new IOException("Cache entry for " + mKey + " has changed");
+                }
+                return header.checksummed ? new ChecksumInputStream(cis, mLength) : cis;
+            } catch (IOException e) {
+                fis.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+    }
+
+    /**
+     * An entry with its eviction score as it was when taken, for sorting.
+     */
+    private static class Ranked implements Comparable<Ranked> {
+        private final CacheHeader entry;
+        private final double score;
+
+        private Ranked(CacheHeader entry, double score) {
+            this.entry = entry;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            return Double.compare(score, other.score);
+        }
+    }
+
+    /**
+     * A snapshot of a {@link DiskBasedCache}'s usage.
+     */
+    public static class Stats {
+        /** Number of lookups that found an entry. */
+        public final long hitCount;
+
+        /** Number of lookups that found no entry. */
+        public final long missCount;
+
+        /** Number of entries evicted to make room for others. */
+        public final long evictionCount;
+
+        /** Number of entries the eviction policy didn't find worth making room for. */
+        public final long rejectedWriteCount;
+
+        /** Number of entries in the cache. */
+        public final int entryCount;
+
+        /** Space taken by the entries, in bytes. */
+        public final long totalSize;
+
+        Stats(long hitCount, long missCount, long evictionCount, long rejectedWriteCount,
+                int entryCount, long totalSize) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.rejectedWriteCount = rejectedWriteCount;
+            this.entryCount = entryCount;
+            this.totalSize = totalSize;
+        }
+
+        /**
+         * Returns the share of lookups that found an entry, or 0 if there were none.
+         */
+        public double getHitRatio() {
+            long lookups = hitCount + missCount;
+            return lookups == 0 ? 0 : (double) hitCount / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d (hit ratio %.3f), evictions=%d, "
+                    + "rejected writes=%d, entries=%d, size=%d", hitCount, missCount,
+                    getHitRatio(), evictionCount, rejectedWriteCount, entryCount, totalSize);
+        }
+    }
+
+    /**
+     * Reads an entry's data, and checks it against the checksum that follows once it has all
+     * been read, failing the read that reaches the end if they don't match.
+     */
+    private static class ChecksumInputStream extends FilterInputStream {
+        private final CRC32 mCrc = new CRC32();
+        private long mRemaining;
+        private boolean mVerified = false;
+
+        private ChecksumInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining == 0) {
+                verify();
+                return -1;
+            }
+            int b = DiskBasedCache.read(in);
+            mCrc.update(b);
+            mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (mRemaining == 0) {
+                verify();
+                return -1;
+            }
+            int result = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (result == -1) {
+                throw new EOFException();
+            }
+            mCrc.update(buffer, offset, result);
+            mRemaining -= result;
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes still have to be checked.
+            byte[] buffer = new byte[(int) Math.min(count, 8 * 1024)];
+            long skipped = 0;
+            while (skipped < count) {
+                int result = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+                if (result == -1) {
+                    break;
+                }
+                skipped += result;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() throws IOException {
+            if (mVerified) {
+                return;
+            }
+            mVerified = true;
+            if (readInt(in) != (int) mCrc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+        }
+    }
+
     private static class CountingInputStream extends FilterInputStream {
         private int bytesRead = 0;
 
@@ -467,7 +1598,7 @@ public class DiskBasedCache implements Cache {
      * Simple wrapper around {@link InputStream#read()} that throws EOFException
      * instead of returning -1.
      */
-    private static int read(InputStream is) throws IOException {
+    static int read(InputStream is) throws IOException {
         int b = is.read();
         if (b == -1) {
             throw new EOFException();
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Decides which entries {@link DiskBasedCache} evicts when it needs room, and whether a new
+ * entry is worth evicting them for.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called on every lookup of a key, whether or not the cache holds an entry for it.
+     * @param key Cache key
+     */
+    public void onRequest(String key);
+
+    /**
+     * Returns a score ranking an entry for eviction; entries with the lowest scores are
+     * evicted first. The cache takes each entry's score once per pruning pass.
+     * @param entry The entry to score
+     * @param now The current time, as returned by {@link System#currentTimeMillis()}
+     */
+    public double score(Candidate entry, long now);
+
+    /**
+     * Returns whether an entry about to be written is worth evicting another entry, the
+     * first in line for eviction, to make room. If not, the new entry isn't cached.
+     * @param incoming The entry about to be written
+     * @param victim The entry that would be evicted first
+     * @param now The current time, as returned by {@link System#currentTimeMillis()}
+     */
+    public boolean admit(Candidate incoming, Candidate victim, long now);
+
+    /**
+     * What an eviction policy is told about a cache entry.
+     */
+    public interface Candidate {
+        /** Returns the key of the entry. */
+        public String getKey();
+
+        /** Returns the space the entry takes on disk, in bytes. */
+        public long getSize();
+
+        /** Returns the stamp of the last access to the entry; larger stamps are more recent. */
+        public long getLastAccess();
+
+        /** Returns the time after which the entry is expired, as in {@link
+         * com.android.volley.Cache.Entry#ttl}. */
+        public long getTtl();
+    }
+}
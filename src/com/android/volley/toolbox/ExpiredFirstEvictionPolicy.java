@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Evicts expired entries first, those that expired earliest before the others, then the least
+ * recently used of the entries that are still fresh. An expired entry can only save the
+ * transfer of a body that turns out to be unchanged, while a fresh one saves a whole request.
+ */
+public class ExpiredFirstEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * Subtracted from the expiry time of expired entries, so that their scores are below those
+     * of all fresh entries and still ordered by when they expired.
+     */
+    private static final double EXPIRED_OFFSET = 1e15;
+
+    @Override
+    public void onRequest(String key) {
+    }
+
+    @Override
+    public double score(Candidate entry, long now) {
+        if (entry.getTtl() < now) {
+            return entry.getTtl() - EXPIRED_OFFSET;
+        }
+        return entry.getLastAccess();
+    }
+
+    @Override
+    public boolean admit(Candidate incoming, Candidate victim, long now) {
+        return true;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Evicts the least recently used entries first, and caches every new entry. This is the
+ * default policy of {@link DiskBasedCache}.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    @Override
+    public void onRequest(String key) {
+    }
+
+    @Override
+    public double score(Candidate entry, long now) {
+        return entry.getLastAccess();
+    }
+
+    @Override
+    public boolean admit(Candidate incoming, Candidate victim, long now) {
+        return true;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.RequestQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper that collects small GET requests added within a short window and sends them to a
+ * batch endpoint as one {@link BatchRequest}, instead of paying a round trip for each.
+ *
+ * <p>Requests that aren't GETs, and a window that collects only a single request, are added to
+ * the {@link RequestQueue} as they are. Requests waiting for a batch are held by the queue, see
+ * {@link RequestQueue#hold(Request)}, so canceling them through the queue works as usual.
+ * Batched requests skip the cache lookup, since the point of batching is to fetch; their
+ * responses are still written to cache. A request identical to one already in flight isn't
+ * batched, but waits for that one and is then looked up in the cache. Note that all function calls to this class must be
+ * made from the main thread.</p>
+ */
+public class RequestBatcher {
+    /** RequestQueue for dispatching batches onto. */
+    private final RequestQueue mRequestQueue;
+
+    /** URL of the batch endpoint. */
+    private final String mBatchUrl;
+
+    /** Amount of time to collect requests after the first one arrives. */
+    private int mBatchWindowMs = 10;
+
+    /** Number of requests at which a batch is sent without waiting for the window to end. */
+    private int mMaxBatchSize = 50;
+
+    /** Requests collected for the next batch. */
+    private final List<Request<?>> mPending = new ArrayList<Request<?>>();
+
+    /** Handler to the main thread. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Sends the collected requests when the window ends. */
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructs a new RequestBatcher.
+     * @param queue The RequestQueue to add batches to.
+     * @param batchUrl URL of the batch endpoint.
+     */
+    public RequestBatcher(RequestQueue queue, String batchUrl) {
+        mRequestQueue = queue;
+        mBatchUrl = batchUrl;
+    }
+
+    /**
+     * Sets the amount of time to collect requests after the first one arrives before sending
+     * them as a batch.
+     * @param batchWindowMs The time in milliseconds to wait.
+     */
+    public void setBatchWindow(int batchWindowMs) {
+        mBatchWindowMs = batchWindowMs;
+    }
+
+    /**
+     * Sets the number of requests at which a batch is sent right away.
+     * @param maxBatchSize The largest number of requests to send in one batch.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Adds a request to the next batch, or straight to the queue if it can't be batched.
+     * @param request The request to service
+     * @return The passed-in request
+     */
+    public <T> Request<T> add(Request<T> request) {
+        throwIfNotOnMainThread();
+        if (request.getMethod() != Method.GET) {
+            mRequestQueue.add(request);
+            return request;
+        }
+        if (!mRequestQueue.hold(request)) {
+            // Waits for the identical request in flight, and is then served from the cache.
+            return request;
+        }
+        mPending.add(request);
+        if (mPending.size() >= mMaxBatchSize) {
+            flush();
+        } else if (mPending.size() == 1) {
+            mHandler.postDelayed(mFlushRunnable, mBatchWindowMs);
+        }
+        return request;
+    }
+
+    /**
+     * Sends the requests collected so far without waiting for the window to end.
+     */
+    public void flush() {
+        throwIfNotOnMainThread();
+        mHandler.removeCallbacks(mFlushRunnable);
+        List<Request<?>> parts = new ArrayList<Request<?>>(mPending.size());
+        for (Request<?> request : mPending) {
+            if (request.isCanceled()) {
+                // Let the queue finish it.
+                mRequestQueue.add(request);
+            } else {
+                parts.add(request);
+            }
+        }
+        mPending.clear();
+        if (parts.size() == 1) {
+            mRequestQueue.add(parts.get(0));
+        } else if (parts.size() > 1) {
+            mRequestQueue.add(createBatchRequest(mBatchUrl, parts));
+        }
+    }
+
+    /**
+     * Creates the request that sends a batch. Override to use a {@link BatchRequest} subclass
+     * that speaks another wire format, or to set a retry policy or headers on the batch.
+     */
+    protected BatchRequest createBatchRequest(String batchUrl, List<Request<?>> parts) {
+        return new BatchRequest(mRequestQueue, batchUrl, parts);
+    }
+
+    private void throwIfNotOnMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("RequestBatcher must be invoked from the main thread.");
+        }
+    }
+}
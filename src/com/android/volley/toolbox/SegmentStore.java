@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The segment files of a {@link DiskBasedCache}, which small entries are appended to so that
+ * thousands of small responses don't each take a file, an inode and a partly used block.
+ *
+ * <p>The journal is the segments' index, recording each packed entry's segment and offset.
+ * Removing or rewriting a packed entry leaves its old record behind as dead space, and a
+ * segment that is mostly dead is compacted on a background thread, which has the cache move
+ * its live records to the end of the current segment and then deletes it.</p>
+ */
+class SegmentStore {
+    /** Prefix of segment file names, followed by the segment's id. */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** Length from which a segment is no longer appended to. */
+    static final int SEGMENT_BYTES = 512 * 1024;
+
+    /** Share of a segment's length below which its live records are compacted. */
+    private static final float SEGMENT_COMPACT_FACTOR = 0.5f;
+
+    /**
+     * Moves the live records out of a segment being compacted.
+     */
+    interface Compactor {
+        /**
+         * Appends the record of each entry packed into a segment anew, and repoints the entry.
+         * @return the number of entries moved
+         */
+        int moveLiveRecords(int segment);
+    }
+
+    private final File mRootDirectory;
+    private final Compactor mCompactor;
+
+    /** Segment files holding packed entries, by id. */
+    private final ConcurrentHashMap<Integer, Segment> mSegments =
+            new ConcurrentHashMap<Integer, Segment>();
+
+    /** Guards the segment being appended to, and the creation and deletion of segments. */
+    private final Object mLock = new Object();
+
+    /** Segment packed entries are appended to, or null until the next one is opened. */
+    private volatile Segment mActiveSegment;
+
+    /** Stream appending to the active segment. */
+    private OutputStream mActiveSegmentStream;
+
+    /** Id to try for the next segment. */
+    private int mNextSegmentId = 0;
+
+    /** Whether a compactor thread has been started and not yet finished. */
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+
+    SegmentStore(File rootDirectory, Compactor compactor) {
+        mRootDirectory = rootDirectory;
+        mCompactor = compactor;
+    }
+
+    /**
+     * Returns whether a file in the root directory is a segment.
+     */
+    static boolean isSegmentFile(String name) {
+        return name.startsWith(SEGMENT_PREFIX);
+    }
+
+    /**
+     * Registers the segments that entries replayed from the journal are packed into.
+     * @param entries The indexed entries
+     * @return the packed entries whose segment is gone
+     */
+    List<CacheHeader> load(Collection<CacheHeader> entries) {
+        List<CacheHeader> lost = new ArrayList<CacheHeader>();
+        synchronized (mLock) {
+            for (CacheHeader entry : entries) {
+                if (!entry.isPacked()) {
+                    continue;
+                }
+                Segment segment = mSegments.get(entry.segment);
+                if (segment == null) {
+                    File file = getSegmentFile(entry.segment);
+                    if (!file.exists()) {
+                        lost.add(entry);
+                        continue;
+                    }
+                    segment = new Segment(entry.segment, file);
+                    segment.length = file.length();
+                    mSegments.put(entry.segment, segment);
+                    mNextSegmentId = Math.max(mNextSegmentId, entry.segment + 1);
+                }
+                segment.liveBytes.addAndGet(entry.size);
+            }
+        }
+        scheduleCompactionIfNeeded();
+        return lost;
+    }
+
+    /**
+     * Reads a packed entry's record, as written, from its segment.
+     */
+    byte[] read(CacheHeader entry) throws IOException {
+        FileInputStream fis = new FileInputStream(getSegmentFile(entry.segment));
+        try {
+            return DiskBasedCache.readData(fis.getChannel(), entry.offset, entry.size);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, opening a new one if there is none or it is
+     * full, and sets where the entry is packed.
+     * @param e The entry the record is for.
+     * @param record The record: the entry's header, data and checksum.
+     */
+    void append(CacheHeader e, byte[] record) throws IOException {
+        synchronized (mLock) {
+            if (mActiveSegment == null || mActiveSegment.length >= SEGMENT_BYTES) {
+                closeActiveSegment();
+                openSegment();
+            }
+            Segment segment = mActiveSegment;
+            try {
+                mActiveSegmentStream.write(record);
+                mActiveSegmentStream.flush();
+            } catch (IOException ex) {
+                // Don't append after a record that may be cut short.
+                segment.length = segment.file.length();
+                closeActiveSegment();
+                throw ex;
+            }
+            e.segment = segment.id;
+            e.offset = segment.length;
+            e.size = record.length;
+            segment.length += record.length;
+        }
+    }
+
+    /**
+     * Accounts for a packed entry's record becoming live or dead in its segment, and starts
+     * compacting the segment if that leaves it mostly dead.
+     */
+    void addLiveBytes(CacheHeader entry, long delta) {
+        if (!entry.isPacked()) {
+            return;
+        }
+        // Segments are only registered once the journal has been replayed.
+        Segment segment = mSegments.get(entry.segment);
+        if (segment == null) {
+            return;
+        }
+        segment.liveBytes.addAndGet(delta);
+        if (delta < 0 && needsCompaction(segment)) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Deletes a segment found by the scan, unless packed entries have been written to it
+     * since. Without the journal there's no telling which of its records are still live.
+     */
+    void deleteUnused(File file) {
+        synchronized (mLock) {
+            for (Segment segment : mSegments.values()) {
+                if (segment.file.equals(file)) {
+                    return;
+                }
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Forgets every segment, for a cache being cleared. The caller deletes the files.
+     */
+    void clear() {
+        synchronized (mLock) {
+            closeActiveSegment();
+            mSegments.clear();
+        }
+    }
+
+    /**
+     * Creates a new, empty segment and makes it the active one. Must be called holding the
+     * lock, with no active segment.
+     */
+    private void openSegment() throws IOException {
+        File file;
+        int id;
+        do {
+            // Skip segments left from before the journal was lost, that the scan will delete.
+            id = mNextSegmentId++;
+            file = getSegmentFile(id);
+        } while (file.exists());
+        mActiveSegmentStream = new FileOutputStream(file);
+        Segment segment = new Segment(id, file);
+        mSegments.put(id, segment);
+        mActiveSegment = segment;
+    }
+
+    /**
+     * Stops appending to the active segment. Must be called holding the lock.
+     */
+    private void closeActiveSegment() {
+        Segment segment = mActiveSegment;
+        if (segment == null) {
+            return;
+        }
+        mActiveSegment = null;
+        try {
+            mActiveSegmentStream.close();
+        } catch (IOException ignored) { }
+        mActiveSegmentStream = null;
+        if (needsCompaction(segment)) {
+            scheduleCompaction();
+        }
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(mRootDirectory, SEGMENT_PREFIX + id);
+    }
+
+    /**
+     * Returns whether a segment is no longer appended to and is mostly dead space.
+     */
+    private boolean needsCompaction(Segment segment) {
+        return segment != mActiveSegment
+                && segment.liveBytes.get() < segment.length * SEGMENT_COMPACT_FACTOR;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        for (Segment segment : mSegments.values()) {
+            if (needsCompaction(segment)) {
+                scheduleCompaction();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts a compactor thread, unless one is already running.
+     */
+    private void scheduleCompaction() {
+        if (!mCompactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread("Volley-CacheCompactor") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    for (Segment segment : mSegments.values()) {
+                        if (needsCompaction(segment)) {
+                            compact(segment);
+                        }
+                    }
+                } finally {
+                    mCompactionScheduled.set(false);
+                }
+                // Segments that became mostly dead while this thread was finishing didn't
+                // start another one.
+                scheduleCompactionIfNeeded();
+            }
+        }.start();
+    }
+
+    /**
+     * Has the live records of a segment moved to the active segment, then deletes it.
+     */
+    private void compact(Segment segment) {
+        long startTime = SystemClock.elapsedRealtime();
+        int moved = mCompactor.moveLiveRecords(segment.id);
+        synchronized (mLock) {
+            // Every entry in it has been moved or removed, and nothing is appended to it.
+            if (segment.liveBytes.get() == 0 && mSegments.remove(segment.id) != null) {
+                segment.file.delete();
+            }
+        }
+        if (VolleyLog.sDebug) {
+            VolleyLog.v("compacted segment %d, moved %d entries, %d ms", segment.id, moved,
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * A file that packed entries are appended to.
+     */
+    private static class Segment {
+        private final int id;
+        private final File file;
+
+        /** Length of the file; grows only while this is the active segment. */
+        private volatile long length;
+
+        /** Total length of the records of entries still in the index. */
+        private final AtomicLong liveBytes = new AtomicLong();
+
+        private Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+}
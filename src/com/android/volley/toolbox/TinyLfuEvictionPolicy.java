@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Evicts the least frequently requested entries first, as estimated by a small sketch of
+ * recent request counts in the style of TinyLFU, and only caches a new entry if it is
+ * requested at least as often as the entry it would displace. One large download that is
+ * rarely asked for then no longer flushes many small entries that are asked for all the time.
+ *
+ * <p>Request counts are kept in a count-min sketch of four rows of saturating counters, which
+ * are all halved once the sketch has taken a number of increments proportional to its width,
+ * so that the estimate follows changes in popularity. Keys the cache no longer holds keep
+ * their counts until then, so an entry that comes back is judged on its history. Counters
+ * are updated without locking; an increment racing with the halving may be lost, which only
+ * blurs the estimate.</p>
+ *
+ * <p>When size-aware, entries are ranked by their estimated request count per byte, favoring
+ * entries that save the most requests for the space they take.</p>
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    /** Number of rows in the sketch. */
+    private static final int DEPTH = 4;
+
+    /** Largest count a counter holds. */
+    private static final int MAX_COUNT = 15;
+
+    /** Number of increments, per counter in a row, after which all counts are halved. */
+    private static final int SAMPLE_FACTOR = 10;
+
+    /** Number of low bits of a score that hold the access stamp. */
+    private static final int ACCESS_BITS = 40;
+
+    /** Largest access stamp that fits in a score; later stamps tie with it. */
+    private static final long MAX_ACCESS = (1L << ACCESS_BITS) - 1;
+
+    /** Default number of entries the sketch is sized for. */
+    private static final int DEFAULT_EXPECTED_ENTRIES = 1024;
+
+    /** Multipliers giving each row its own hash of a key. */
+    private static final int[] SEEDS = {
+        0x97cb3127, 0xab7f5b3b, 0x8d9e1a47, 0xc2b2ae35
+    };
+
+    /** The counters, row after row. */
+    private final AtomicIntegerArray mCounters;
+
+    /** Mask used to map a hash onto a counter in a row. */
+    private final int mMask;
+
+    /** Width of each row. */
+    private final int mWidth;
+
+    /** Whether entries are ranked per byte they take. */
+    private final boolean mSizeAware;
+
+    /** Number of increments since counts were last halved. */
+    private final AtomicInteger mIncrements = new AtomicInteger();
+
+    /** Whether a thread is halving the counts. */
+    private final AtomicBoolean mHalving = new AtomicBoolean();
+
+    /**
+     * Creates a policy sized for 1024 entries, ranking entries
+     * by request count alone.
+     */
+    public TinyLfuEvictionPolicy() {
+        this(DEFAULT_EXPECTED_ENTRIES, false);
+    }
+
+    /**
+     * @param expectedEntries Number of entries the cache is expected to hold
+     * @param sizeAware Whether to rank entries by request count per byte
+     */
+    public TinyLfuEvictionPolicy(int expectedEntries, boolean sizeAware) {
+        int width = 16;
+        while (width < expectedEntries) {
+            width <<= 1;
+        }
+        mWidth = width;
+        mMask = width - 1;
+        mCounters = new AtomicIntegerArray(DEPTH * width);
+        mSizeAware = sizeAware;
+    }
+
+    @Override
+    public void onRequest(String key) {
+        int hash = spread(key.hashCode());
+        boolean incremented = false;
+        for (int i = 0; i < DEPTH; i++) {
+            incremented |= increment(indexOf(hash, i));
+        }
+        int sampleSize = mWidth * SAMPLE_FACTOR;
+        if (incremented && mIncrements.incrementAndGet() >= sampleSize
+                && mHalving.compareAndSet(false, true)) {
+            try {
+                for (int i = 0; i < mCounters.length(); i++) {
+                    int count;
+                    do {
+                        count = mCounters.get(i);
+                    } while (!mCounters.compareAndSet(i, count, count >> 1));
+                }
+                mIncrements.addAndGet(-sampleSize / 2);
+            } finally {
+                mHalving.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent requests for a key.
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, mCounters.get(indexOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments a counter unless it is saturated.
+     * @return whether the counter was incremented
+     */
+    private boolean increment(int index) {
+        int count;
+        do {
+            count = mCounters.get(index);
+            if (count >= MAX_COUNT) {
+                return false;
+            }
+        } while (!mCounters.compareAndSet(index, count, count + 1));
+        return true;
+    }
+
+    @Override
+    public double score(Candidate entry, long now) {
+        int frequency = frequency(entry.getKey());
+        if (mSizeAware) {
+            return (double) frequency / Math.max(entry.getSize(), 1);
+        }
+        // Among entries requested equally often, evict the least recently used first. The
+        // access stamp takes the low bits, which a double holds exactly next to a count.
+        return (double) (((long) frequency << ACCESS_BITS)
+                | Math.min(entry.getLastAccess(), MAX_ACCESS));
+    }
+
+    @Override
+    public boolean admit(Candidate incoming, Candidate victim, long now) {
+        return score(incoming, now) >= score(victim, now);
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= (h >>> 17);
+        return row * mWidth + (h & mMask);
+    }
+
+    private static int spread(int h) {
+        // Spread the high bits downwards so that they take part in choosing the counter.
+        return h ^ (h >>> 16);
+    }
+}